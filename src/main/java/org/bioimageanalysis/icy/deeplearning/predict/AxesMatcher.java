@@ -1,13 +1,15 @@
 package org.bioimageanalysis.icy.deeplearning.predict;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.transform.integer.MixedTransform;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.MixedTransformView;
 import net.imglib2.view.Views;
 
 public class AxesMatcher
@@ -183,6 +185,11 @@ public class AxesMatcher
 
 	private static final String DIM_NAMES = "bitczyx";
 
+	/**
+	 * Mappings already computed, by input and desired axes strings.
+	 */
+	private static final Map< String, AxesMapping > MAPPINGS = new ConcurrentHashMap<>();
+
 	/**
 	 * Adds dimensions and flip dimensions to a view of the specified RAI with
 	 * the specified input axes string, so that its dimensions matches the
@@ -231,15 +238,13 @@ public class AxesMatcher
 		if ( input.numDimensions() != inputAxes.length() )
 			throw new IllegalArgumentException( "The input image has " + input.numDimensions() + " dimensions but the input axes specifications has " + inputAxes.length() + " characters." );
 
-		// Get mofication sequence.
-		final List< DimensionalityModification > sequence = getSequence( desiredAxes, inputAxes );
+		final AxesMapping mapping = getMapping( desiredAxes, inputAxes );
+		if ( mapping.isIdentity() )
+			return input;
 
-		// Execute sequence.
-		RandomAccessibleInterval< T > output = input;
-		for ( final DimensionalityModification change : sequence )
-			output = change.updateRAI( output );
-
-		return output;
+		// A single view, whatever the number of modifications.
+		final MixedTransformView< T > view = new MixedTransformView<>( input, mapping.getTransform( input ) );
+		return Views.interval( view, mapping.apply( input ) );
 	}
 
 	public static final Interval matchInterval( final String desiredAxes, final String inputAxes, final Interval inputInterval )
@@ -248,68 +253,105 @@ public class AxesMatcher
 		if ( inputInterval.numDimensions() != inputAxes.length() )
 			throw new IllegalArgumentException( "The input interval has " + inputInterval.numDimensions() + " dimensions but the input axes specifications has " + inputAxes.length() + " characters." );
 
-		// Get mofication sequence.
-		final List< DimensionalityModification > sequence = getSequence( desiredAxes, inputAxes );
-		
-		// Execute sequence.
-		Interval output = inputInterval;
-		for ( final DimensionalityModification change : sequence )
-			output = change.updateInterval( output );
+		return getMapping( desiredAxes, inputAxes ).apply( inputInterval );
+	}
 
-		return output;
+	/**
+	 * Returns the mapping for the specified pair of axes strings, computing it
+	 * once.
+	 */
+	private static AxesMapping getMapping( final String desiredAxes, final String inputAxes )
+	{
+		return MAPPINGS.computeIfAbsent( inputAxes + ">" + desiredAxes, k -> new AxesMapping( desiredAxes, inputAxes ) );
 	}
 
-	private static List< DimensionalityModification > getSequence( final String desiredAxes, String inputAxes )
+	/**
+	 * The mapping between an input axes string and a desired axes string,
+	 * compiled into a single {@link MixedTransform}. It has the same effect as
+	 * applying in sequence the {@link DimensionalityModification}s: dropping
+	 * the superfluous dimensions at their min, adding the missing ones as
+	 * singletons and permuting the others.
+	 */
+	private static final class AxesMapping
 	{
-		checkAuthorizedChars( desiredAxes );
-		checkAuthorizedChars( inputAxes );
 
-		final List< DimensionalityModification > sequence = new ArrayList<>();
+		/**
+		 * For each input dimension, the desired dimension it goes to, or -1 if
+		 * it is dropped.
+		 */
+		private final int[] toDesired;
 
-		/*
-		 * Check dimensions to drop.
+		/**
+		 * For each desired dimension, the input dimension it comes from, or -1
+		 * if it is added.
 		 */
-		for ( int i = 0; i < inputAxes.length(); i++ )
+		private final int[] fromInput;
+
+		private AxesMapping( final String desiredAxes, final String inputAxes )
 		{
-			final char c = inputAxes.charAt( i );
-			if ( desiredAxes.indexOf( c ) < 0 )
-			{
-				final DimensionDropped change = DimensionalityModification.remove( i, "" + c );
-				inputAxes = change.updateString( inputAxes );
-				sequence.add( change );
-			}
+			checkAuthorizedChars( desiredAxes );
+			checkAuthorizedChars( inputAxes );
+			this.toDesired = new int[ inputAxes.length() ];
+			for ( int d = 0; d < toDesired.length; d++ )
+				toDesired[ d ] = desiredAxes.indexOf( inputAxes.charAt( d ) );
+			this.fromInput = new int[ desiredAxes.length() ];
+			for ( int d = 0; d < fromInput.length; d++ )
+				fromInput[ d ] = inputAxes.indexOf( desiredAxes.charAt( d ) );
+		}
+
+		private boolean isIdentity()
+		{
+			if ( toDesired.length != fromInput.length )
+				return false;
+			for ( int d = 0; d < toDesired.length; d++ )
+				if ( toDesired[ d ] != d )
+					return false;
+			return true;
 		}
 
-		/*
-		 * Check missing dimensions from the input.
+		/**
+		 * Returns the transform from the desired coordinates to the input
+		 * coordinates. The dropped dimensions are fixed at the input min.
 		 */
-		for ( int i = 0; i < desiredAxes.length(); i++ )
+		private MixedTransform getTransform( final Interval input )
 		{
-			final char c = desiredAxes.charAt( i );
-			if ( inputAxes.indexOf( c ) < 0 )
+			final int n = toDesired.length;
+			final MixedTransform transform = new MixedTransform( fromInput.length, n );
+			final long[] translation = new long[ n ];
+			final boolean[] zero = new boolean[ n ];
+			final int[] component = new int[ n ];
+			for ( int d = 0; d < n; d++ )
 			{
-				final DimensionAdded change = DimensionalityModification.add( i, "" + c );
-				inputAxes = change.updateString( inputAxes );
-				sequence.add( change );
+				if ( toDesired[ d ] < 0 )
+				{
+					zero[ d ] = true;
+					translation[ d ] = input.min( d );
+				}
+				else
+				{
+					component[ d ] = toDesired[ d ];
+				}
 			}
+			transform.setTranslation( translation );
+			transform.setComponentZero( zero );
+			transform.setComponentMapping( component );
+			return transform;
 		}
 
-		/*
-		 * Check dimensions to flip.
-		 */
-		for ( int i = 0; i < inputAxes.length(); i++ )
+		private Interval apply( final Interval input )
 		{
-			final char c = inputAxes.charAt( i );
-			final int j = desiredAxes.indexOf( c );
-			if ( j < 0 || i == j )
-				continue;
-			final char d = desiredAxes.charAt( i );
-			final DimensionFlip change = DimensionalityModification.flip( i, j, "" + c + d );
-			inputAxes = change.updateString( inputAxes );
-			sequence.add( change );
+			final long[] min = new long[ fromInput.length ];
+			final long[] max = new long[ fromInput.length ];
+			for ( int d = 0; d < fromInput.length; d++ )
+			{
+				if ( fromInput[ d ] >= 0 )
+				{
+					min[ d ] = input.min( fromInput[ d ] );
+					max[ d ] = input.max( fromInput[ d ] );
+				}
+			}
+			return new FinalInterval( min, max );
 		}
-
-		return sequence;
 	}
 
 	private static void checkAuthorizedChars( final String axes )
@@ -0,0 +1,243 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Wraps a {@link PredictorOp} so that the cells requested concurrently are
+ * stacked along the 'b' axis and processed with a single call to the model.
+ * <p>
+ * The first thread to request a cell opens a batch, and waits at most for the
+ * specified time window for other threads to add their cells to it, or until
+ * the batch is full. It then runs the model on the stacked input, and splits
+ * the output back into the individual cells. Only cells that require an input
+ * of the same shape are stacked together. A request for a cell with another
+ * shape closes the current batch and opens a new one.
+ * <p>
+ * The model must accept a batch size larger than 1, even if its specs only
+ * declare a batch size of 1. This is the case of most engines.
+ *
+ * @param <I>
+ *            the type of the pixels in the input.
+ * @param <O>
+ *            the type of the pixel in the output.
+ */
+public class BatchedPredictorOp< I extends RealType< I > & NativeType< I >, O extends RealType< O > & NativeType< O > > implements Consumer< RandomAccessibleInterval< O > >
+{
+
+	private final PredictorOp< I, O > op;
+
+	private final int maxBatchSize;
+
+	private final long windowMillis;
+
+	private final int inputBatchAxis;
+
+	private final int outputBatchAxis;
+
+	private final Object lock = new Object();
+
+	/**
+	 * The batch currently accepting new cells. Guarded by {@link #lock}.
+	 */
+	private Batch current;
+
+	/**
+	 * Creates a batching predictor.
+	 *
+	 * @param op
+	 *            the predictor to use to prepare the inputs, run the model and
+	 *            write the outputs.
+	 * @param maxBatchSize
+	 *            the maximal number of cells to stack in one model call.
+	 * @param windowMillis
+	 *            the maximal time, in milliseconds, to wait for other cells to
+	 *            be requested before running the model.
+	 * @throws IllegalArgumentException
+	 *             if the model input or output has no 'b' axis, or if the
+	 *             batch size is smaller than 1.
+	 */
+	public BatchedPredictorOp( final PredictorOp< I, O > op, final int maxBatchSize, final long windowMillis )
+	{
+		final ModelSpec spec = op.getModelSpec();
+		this.inputBatchAxis = spec.inputAxes.indexOf( 'b' );
+		this.outputBatchAxis = spec.outputAxes.indexOf( 'b' );
+		if ( inputBatchAxis < 0 || outputBatchAxis < 0 )
+			throw new IllegalArgumentException( "Batching requires a 'b' axis in the model input and output, but they are " + spec.inputAxes + " and " + spec.outputAxes + "." );
+		if ( maxBatchSize < 1 )
+			throw new IllegalArgumentException( "The batch size must be at least 1, but was " + maxBatchSize + "." );
+
+		this.op = op;
+		this.maxBatchSize = maxBatchSize;
+		this.windowMillis = windowMillis;
+	}
+
+	@Override
+	public void accept( final RandomAccessibleInterval< O > cell )
+	{
+		final Interval inputInterval = op.getValidInputInterval( cell );
+		if ( maxBatchSize == 1 || inputInterval.dimension( inputBatchAxis ) != 1 )
+		{
+			// Cannot stack this one.
+			op.accept( cell );
+			return;
+		}
+
+		final Batch batch;
+		final boolean leader;
+		synchronized ( lock )
+		{
+			if ( current == null || !current.accepts( inputInterval ) )
+			{
+				current = new Batch( inputInterval.dimensionsAsLongArray() );
+				leader = true;
+				// Wake up the leader of the previous batch, now closed.
+				lock.notifyAll();
+			}
+			else
+			{
+				leader = false;
+			}
+			batch = current;
+			batch.add( cell, inputInterval );
+			if ( batch.size() >= maxBatchSize )
+			{
+				current = null;
+				lock.notifyAll();
+			}
+		}
+
+		if ( leader )
+		{
+			waitForOtherCells( batch );
+			batch.run();
+		}
+		batch.await();
+	}
+
+	/**
+	 * Waits until the specified batch is full, closed or until the time
+	 * window elapsed, then closes it.
+	 */
+	private void waitForOtherCells( final Batch batch )
+	{
+		final long deadline = System.currentTimeMillis() + windowMillis;
+		synchronized ( lock )
+		{
+			try
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				while ( current == batch && remaining > 0 )
+				{
+					lock.wait( remaining );
+					remaining = deadline - System.currentTimeMillis();
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				if ( current == batch )
+					current = null;
+			}
+		}
+	}
+
+	private final class Batch
+	{
+
+		private final long[] inputDimensions;
+
+		private final List< RandomAccessibleInterval< O > > cells = new ArrayList<>();
+
+		private final List< Interval > inputIntervals = new ArrayList<>();
+
+		private final CountDownLatch done = new CountDownLatch( 1 );
+
+		private volatile RuntimeException error;
+
+		private Batch( final long[] inputDimensions )
+		{
+			this.inputDimensions = inputDimensions;
+		}
+
+		private boolean accepts( final Interval inputInterval )
+		{
+			return Arrays.equals( inputDimensions, inputInterval.dimensionsAsLongArray() );
+		}
+
+		private void add( final RandomAccessibleInterval< O > cell, final Interval inputInterval )
+		{
+			cells.add( cell );
+			inputIntervals.add( inputInterval );
+		}
+
+		private int size()
+		{
+			return cells.size();
+		}
+
+		private void run()
+		{
+			final int size = size();
+			try
+			{
+				// Stack the inputs along 'b' and run the model once.
+				final RandomAccessibleInterval< FloatType > output = op.runModelOnStack( inputIntervals, inputBatchAxis );
+
+				// Split the output along 'b'.
+				for ( int i = 0; i < size; i++ )
+					op.writeOutput( Views.zeroMin( Views.interval( output, slab( output, outputBatchAxis, i ) ) ), cells.get( i ) );
+			}
+			catch ( final RuntimeException e )
+			{
+				error = e;
+			}
+			finally
+			{
+				done.countDown();
+			}
+		}
+
+		private void await()
+		{
+			try
+			{
+				done.await();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+			if ( error != null )
+				throw error;
+		}
+	}
+
+	/**
+	 * Returns the sub-interval of the specified interval at position
+	 * {@code pos} along dimension {@code d}, keeping this dimension.
+	 */
+	private static Interval slab( final Interval interval, final int d, final long pos )
+	{
+		final long[] min = interval.minAsLongArray();
+		final long[] max = interval.maxAsLongArray();
+		min[ d ] = pos;
+		max[ d ] = pos;
+		return new FinalInterval( min, max );
+	}
+}
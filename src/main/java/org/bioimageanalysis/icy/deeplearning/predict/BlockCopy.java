@@ -0,0 +1,423 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.Arrays;
+import java.util.stream.LongStream;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
+
+/**
+ * Copies blocks of pixels between images backed by primitive arrays, row by
+ * row, converting the pixel type on the fly. Values written to integer types
+ * are rounded with {@link Util#round(double)}, as the {@link RealType} setters
+ * do.
+ * <p>
+ * This replaces per-pixel cursors over chains of views for the tile copies of
+ * the predictors, when the source is an {@link net.imglib2.img.array.ArrayImg}
+ * or a cell image, possibly extended, and the target is a single array image
+ * such as a buffer or a cell of a lazy image. Rows of the same pixel type are
+ * copied with {@link System#arraycopy}. Large blocks are split along their
+ * last dimension and copied in parallel.
+ * <p>
+ * The methods return <code>false</code>, without copying anything, when the
+ * images are not supported, so that callers can fall back on
+ * {@link net.imglib2.converter.RealTypeConverters}.
+ */
+public class BlockCopy
+{
+
+	/**
+	 * Number of pixels above which a block is copied in parallel.
+	 */
+	private static final long PARALLEL_THRESHOLD = 1 << 18;
+
+	/**
+	 * Copies the specified interval of the source in the specified target,
+	 * which must have the same dimensions.
+	 *
+	 * @param source
+	 *            the source.
+	 * @param interval
+	 *            the interval to copy, in source coordinates.
+	 * @param target
+	 *            the target.
+	 * @return <code>true</code> if the block was copied, <code>false</code> if
+	 *         the images are not supported.
+	 */
+	public static boolean copy( final RandomAccessible< ? > source, final Interval interval, final RandomAccessibleInterval< ? > target )
+	{
+		return copy( source, interval, target, new long[ target.numDimensions() ] );
+	}
+
+	/**
+	 * Copies the specified interval of the source in the specified target, at
+	 * the specified offset from its min.
+	 *
+	 * @param source
+	 *            the source.
+	 * @param interval
+	 *            the interval to copy, in source coordinates.
+	 * @param target
+	 *            the target.
+	 * @param targetOffset
+	 *            where to copy the interval min, relative to the target min.
+	 * @return <code>true</code> if the block was copied, <code>false</code> if
+	 *         the images are not supported.
+	 */
+	public static boolean copy( final RandomAccessible< ? > source, final Interval interval, final RandomAccessibleInterval< ? > target, final long[] targetOffset )
+	{
+		final int n = interval.numDimensions();
+		final long[] size = interval.dimensionsAsLongArray();
+		final long[] targetDimensions = target.dimensionsAsLongArray();
+		for ( int d = 0; d < n; d++ )
+			if ( targetOffset[ d ] < 0 || targetOffset[ d ] + size[ d ] > targetDimensions[ d ] )
+				return false;
+
+		final Object targetArray = ChunkStore.storageArray( target );
+		final Kind targetKind = Kind.of( target );
+		if ( targetArray == null || targetKind == null )
+			return false;
+
+		final Object unwrapped;
+		if ( source instanceof ExtendedRandomAccessibleInterval )
+			unwrapped = ( ( ExtendedRandomAccessibleInterval< ?, ? > ) source ).getSource();
+		else
+			unwrapped = source;
+		if ( !( unwrapped instanceof RandomAccessibleInterval ) )
+			return false;
+		final RandomAccessibleInterval< ? > sourceRai = ( RandomAccessibleInterval< ? > ) unwrapped;
+		if ( !Intervals.contains( sourceRai, interval ) )
+			return false;
+		final Kind sourceKind = Kind.of( sourceRai );
+		if ( sourceKind == null )
+			return false;
+
+		// Single array.
+		final Object sourceArray = ChunkStore.storageArray( sourceRai );
+		if ( sourceArray != null )
+		{
+			final long[] sourceOffset = new long[ n ];
+			for ( int d = 0; d < n; d++ )
+				sourceOffset[ d ] = interval.min( d ) - sourceRai.min( d );
+			copyBlock( sourceArray, sourceKind, sourceRai.dimensionsAsLongArray(), sourceOffset,
+					targetArray, targetKind, targetDimensions, targetOffset, size );
+			return true;
+		}
+
+		// Cell image: copy the part of each cell in the interval.
+		if ( sourceRai instanceof AbstractCellImg && isZeroMin( sourceRai ) )
+			return copyFromCells( ( AbstractCellImg< ?, ?, ?, ? > ) sourceRai, sourceKind, interval, targetArray, targetKind, targetDimensions, targetOffset );
+
+		return false;
+	}
+
+	private static boolean copyFromCells( final AbstractCellImg< ?, ?, ?, ? > img, final Kind sourceKind, final Interval interval, final Object targetArray, final Kind targetKind, final long[] targetDimensions, final long[] targetOffset )
+	{
+		final int n = interval.numDimensions();
+		final long[] firstCell = new long[ n ];
+		final long[] lastCell = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			final int cellSize = img.getCellGrid().cellDimension( d );
+			firstCell[ d ] = interval.min( d ) / cellSize;
+			lastCell[ d ] = interval.max( d ) / cellSize;
+		}
+
+		final RandomAccess< ? > cells = img.getCells().randomAccess();
+		final long[] position = firstCell.clone();
+		final long[] cellDimensions = new long[ n ];
+		final long[] cellOffset = new long[ n ];
+		final long[] blockOffset = new long[ n ];
+		final long[] blockSize = new long[ n ];
+		while ( true )
+		{
+			cells.setPosition( position );
+			final Object c = cells.get();
+			if ( !( c instanceof Cell ) || !( ( ( Cell< ? > ) c ).getData() instanceof ArrayDataAccess ) )
+				return false;
+			final Cell< ? > cell = ( Cell< ? > ) c;
+			final Object cellArray = ( ( ArrayDataAccess< ? > ) cell.getData() ).getCurrentStorageArray();
+			for ( int d = 0; d < n; d++ )
+			{
+				final long min = Math.max( interval.min( d ), cell.min( d ) );
+				final long max = Math.min( interval.max( d ), cell.max( d ) );
+				cellDimensions[ d ] = cell.dimension( d );
+				cellOffset[ d ] = min - cell.min( d );
+				blockOffset[ d ] = targetOffset[ d ] + min - interval.min( d );
+				blockSize[ d ] = max - min + 1;
+			}
+			copyBlock( cellArray, sourceKind, cellDimensions, cellOffset, targetArray, targetKind, targetDimensions, blockOffset, blockSize );
+
+			// Next cell.
+			int d = 0;
+			for ( ; d < n; d++ )
+			{
+				if ( position[ d ] < lastCell[ d ] )
+				{
+					position[ d ]++;
+					break;
+				}
+				position[ d ] = firstCell[ d ];
+			}
+			if ( d == n )
+				return true;
+		}
+	}
+
+	/**
+	 * Copies a block between two flat arrays, laid out with the first
+	 * dimension varying fastest.
+	 */
+	static void copyBlock( final Object source, final Kind sourceKind, final long[] sourceDimensions, final long[] sourceOffset,
+			final Object target, final Kind targetKind, final long[] targetDimensions, final long[] targetOffset,
+			final long[] size )
+	{
+		final int n = size.length;
+		if ( Intervals.numElements( size ) == 0 )
+			return;
+		if ( n == 1 )
+		{
+			copyRow( source, sourceKind, ( int ) sourceOffset[ 0 ], target, targetKind, ( int ) targetOffset[ 0 ], ( int ) size[ 0 ] );
+			return;
+		}
+
+		final long[] sourceSteps = steps( sourceDimensions );
+		final long[] targetSteps = steps( targetDimensions );
+		final LongStream slabs = LongStream.range( 0, size[ n - 1 ] );
+		( Intervals.numElements( size ) > PARALLEL_THRESHOLD ? slabs.parallel() : slabs ).forEach( z -> {
+			final long[] position = new long[ n ];
+			position[ n - 1 ] = z;
+			while ( true )
+			{
+				long s = 0;
+				long t = 0;
+				for ( int d = 0; d < n; d++ )
+				{
+					s += ( sourceOffset[ d ] + position[ d ] ) * sourceSteps[ d ];
+					t += ( targetOffset[ d ] + position[ d ] ) * targetSteps[ d ];
+				}
+				copyRow( source, sourceKind, ( int ) s, target, targetKind, ( int ) t, ( int ) size[ 0 ] );
+
+				// Next row in this slab.
+				int d = 1;
+				for ( ; d < n - 1; d++ )
+				{
+					if ( ++position[ d ] < size[ d ] )
+						break;
+					position[ d ] = 0;
+				}
+				if ( d >= n - 1 )
+					return;
+			}
+		} );
+	}
+
+	/**
+	 * Fills a block of a flat array, laid out with the first dimension varying
+	 * fastest, with the specified value.
+	 */
+	static void fillBlock( final Object array, final Kind kind, final long[] dimensions, final long[] offset, final long[] size, final double value )
+	{
+		final int n = size.length;
+		if ( Intervals.numElements( size ) == 0 )
+			return;
+
+		final long[] steps = steps( dimensions );
+		final long[] position = new long[ n ];
+		while ( true )
+		{
+			long t = 0;
+			for ( int d = 0; d < n; d++ )
+				t += ( offset[ d ] + position[ d ] ) * steps[ d ];
+			kind.fill( array, ( int ) t, ( int ) ( t + size[ 0 ] ), value );
+
+			// Next row.
+			int d = 1;
+			for ( ; d < n; d++ )
+			{
+				if ( ++position[ d ] < size[ d ] )
+					break;
+				position[ d ] = 0;
+			}
+			if ( d >= n )
+				return;
+		}
+	}
+
+	private static void copyRow( final Object source, final Kind sourceKind, final int s, final Object target, final Kind targetKind, final int t, final int length )
+	{
+		if ( sourceKind == targetKind )
+		{
+			System.arraycopy( source, s, target, t, length );
+			return;
+		}
+
+		if ( targetKind == Kind.FLOAT32 )
+		{
+			final float[] out = ( float[] ) target;
+			switch ( sourceKind )
+			{
+			case UINT8:
+			{
+				final byte[] in = ( byte[] ) source;
+				for ( int i = 0; i < length; i++ )
+					out[ t + i ] = in[ s + i ] & 0xff;
+				return;
+			}
+			case UINT16:
+			{
+				final short[] in = ( short[] ) source;
+				for ( int i = 0; i < length; i++ )
+					out[ t + i ] = in[ s + i ] & 0xffff;
+				return;
+			}
+			case INT16:
+			{
+				final short[] in = ( short[] ) source;
+				for ( int i = 0; i < length; i++ )
+					out[ t + i ] = in[ s + i ];
+				return;
+			}
+			case FLOAT64:
+			{
+				final double[] in = ( double[] ) source;
+				for ( int i = 0; i < length; i++ )
+					out[ t + i ] = ( float ) in[ s + i ];
+				return;
+			}
+			default:
+				break;
+			}
+		}
+
+		for ( int i = 0; i < length; i++ )
+			targetKind.set( target, t + i, sourceKind.get( source, s + i ) );
+	}
+
+	static long[] steps( final long[] dimensions )
+	{
+		final long[] steps = new long[ dimensions.length ];
+		long step = 1;
+		for ( int d = 0; d < dimensions.length; d++ )
+		{
+			steps[ d ] = step;
+			step *= dimensions[ d ];
+		}
+		return steps;
+	}
+
+	private static boolean isZeroMin( final Interval interval )
+	{
+		for ( int d = 0; d < interval.numDimensions(); d++ )
+			if ( interval.min( d ) != 0 )
+				return false;
+		return true;
+	}
+
+	/**
+	 * The pixel types supported, with their storage.
+	 */
+	static enum Kind
+	{
+		UINT8, INT8, UINT16, INT16, UINT32, INT32, FLOAT32, FLOAT64;
+
+		/**
+		 * Returns the kind of the pixels of the specified image, or
+		 * <code>null</code> if they are not supported.
+		 */
+		static Kind of( final RandomAccessibleInterval< ? > image )
+		{
+			final Object type = Util.getTypeFromInterval( image );
+			if ( !( type instanceof RealType ) )
+				return null;
+			try
+			{
+				return valueOf( ChunkStore.dataType( ( RealType< ? > ) type ).toUpperCase() );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				return null;
+			}
+		}
+
+		double get( final Object array, final int i )
+		{
+			switch ( this )
+			{
+			case UINT8:
+				return ( ( byte[] ) array )[ i ] & 0xff;
+			case INT8:
+				return ( ( byte[] ) array )[ i ];
+			case UINT16:
+				return ( ( short[] ) array )[ i ] & 0xffff;
+			case INT16:
+				return ( ( short[] ) array )[ i ];
+			case UINT32:
+				return ( ( int[] ) array )[ i ] & 0xffffffffL;
+			case INT32:
+				return ( ( int[] ) array )[ i ];
+			case FLOAT32:
+				return ( ( float[] ) array )[ i ];
+			default:
+				return ( ( double[] ) array )[ i ];
+			}
+		}
+
+		void fill( final Object array, final int from, final int to, final double value )
+		{
+			switch ( this )
+			{
+			case UINT8:
+			case INT8:
+				Arrays.fill( ( byte[] ) array, from, to, ( byte ) Util.round( value ) );
+				break;
+			case UINT16:
+			case INT16:
+				Arrays.fill( ( short[] ) array, from, to, ( short ) Util.round( value ) );
+				break;
+			case UINT32:
+			case INT32:
+				Arrays.fill( ( int[] ) array, from, to, ( int ) Util.round( value ) );
+				break;
+			case FLOAT32:
+				Arrays.fill( ( float[] ) array, from, to, ( float ) value );
+				break;
+			default:
+				Arrays.fill( ( double[] ) array, from, to, value );
+			}
+		}
+
+		void set( final Object array, final int i, final double value )
+		{
+			switch ( this )
+			{
+			case UINT8:
+			case INT8:
+				( ( byte[] ) array )[ i ] = ( byte ) Util.round( value );
+				break;
+			case UINT16:
+			case INT16:
+				( ( short[] ) array )[ i ] = ( short ) Util.round( value );
+				break;
+			case UINT32:
+			case INT32:
+				( ( int[] ) array )[ i ] = ( int ) Util.round( value );
+				break;
+			case FLOAT32:
+				( ( float[] ) array )[ i ] = ( float ) value;
+				break;
+			default:
+				( ( double[] ) array )[ i ] = value;
+			}
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Reads tiles of an image that may extend past its borders, padding them
+ * with block copies instead of reading every pixel through an out-of-bounds
+ * strategy.
+ * <p>
+ * Tiles fully inside the image are copied with {@link BlockCopy} without any
+ * bound check. For a tile that crosses the border, the in-bounds part is
+ * copied first, then the borders are filled one dimension after the other:
+ * each hyperplane outside of the image is either a copy of its mirror inside
+ * the tile, or filled with a constant. This gives the same result as
+ * {@link Views#extendMirrorSingle(RandomAccessibleInterval)},
+ * {@link Views#extendZero(RandomAccessibleInterval)} or
+ * {@link Views#extendValue(RandomAccessibleInterval, RealType)}, which
+ * {@link #extend(RandomAccessibleInterval)} returns for the cases the fast
+ * path does not support.
+ */
+public class BoundaryPadding
+{
+
+	/**
+	 * How to fill the pixels outside of the image.
+	 */
+	public static enum Mode
+	{
+		/**
+		 * Mirror, without repeating the border pixel.
+		 */
+		MIRROR_SINGLE,
+
+		/**
+		 * Zeros.
+		 */
+		ZERO,
+
+		/**
+		 * A constant value.
+		 */
+		CONSTANT;
+	}
+
+	private final RandomAccessibleInterval< ? > source;
+
+	private final Mode mode;
+
+	private final double value;
+
+	/**
+	 * Creates a padding stage for the specified image.
+	 *
+	 * @param source
+	 *            the image, not extended.
+	 * @param mode
+	 *            how to fill the pixels outside of the image.
+	 * @param value
+	 *            the value for {@link Mode#CONSTANT}. Ignored otherwise.
+	 */
+	public BoundaryPadding( final RandomAccessibleInterval< ? > source, final Mode mode, final double value )
+	{
+		this.source = source;
+		this.mode = mode;
+		this.value = ( mode == Mode.ZERO ) ? 0 : value;
+	}
+
+	/**
+	 * Returns the specified image extended as this padding does, to read the
+	 * tiles the fast path cannot handle.
+	 *
+	 * @param image
+	 *            the image to extend.
+	 * @param <T>
+	 *            the type of the pixels.
+	 * @return the extended image.
+	 */
+	public < T extends RealType< T > > RandomAccessible< T > extend( final RandomAccessibleInterval< T > image )
+	{
+		switch ( mode )
+		{
+		case ZERO:
+			return Views.extendZero( image );
+		case CONSTANT:
+		{
+			final T t = image.randomAccess().get().createVariable();
+			t.setReal( value );
+			return Views.extendValue( image, t );
+		}
+		case MIRROR_SINGLE:
+		default:
+			return Views.extendMirrorSingle( image );
+		}
+	}
+
+	/**
+	 * Copies the specified interval of the padded image in the specified
+	 * target, at the specified offset from its min.
+	 *
+	 * @param interval
+	 *            the interval to copy, possibly past the borders of the
+	 *            image.
+	 * @param target
+	 *            the target.
+	 * @param targetOffset
+	 *            where to copy the interval min, relative to the target min.
+	 * @return <code>true</code> if the tile was copied, <code>false</code> if
+	 *         the images are not supported.
+	 */
+	public boolean copy( final Interval interval, final RandomAccessibleInterval< ? > target, final long[] targetOffset )
+	{
+		// No-check path.
+		if ( Intervals.contains( source, interval ) && BlockCopy.copy( source, interval, target, targetOffset ) )
+			return true;
+
+		final int n = interval.numDimensions();
+		final Object array = ChunkStore.storageArray( target );
+		final BlockCopy.Kind kind = BlockCopy.Kind.of( target );
+		if ( array == null || kind == null )
+			return false;
+		for ( int d = 0; d < n; d++ )
+			if ( targetOffset[ d ] < 0 || targetOffset[ d ] + interval.dimension( d ) > target.dimension( d ) )
+				return false;
+
+		final Interval inside = Intervals.intersect( interval, source );
+		final boolean empty = Intervals.isEmpty( inside );
+		if ( empty && mode == Mode.MIRROR_SINGLE )
+			return false;
+		if ( mode == Mode.MIRROR_SINGLE && !mirrorsInside( interval, inside ) )
+			return false;
+
+		// In-bounds part.
+		if ( !empty )
+		{
+			final long[] offset = new long[ n ];
+			for ( int d = 0; d < n; d++ )
+				offset[ d ] = targetOffset[ d ] + inside.min( d ) - interval.min( d );
+			if ( !BlockCopy.copy( source, inside, target, offset ) )
+				copyInside( inside, target, offset );
+		}
+		else
+		{
+			BlockCopy.fillBlock( array, kind, target.dimensionsAsLongArray(), targetOffset, interval.dimensionsAsLongArray(), value );
+			return true;
+		}
+
+		/*
+		 * Borders, one dimension after the other. When processing dimension
+		 * d, the dimensions before d are already filled over the whole tile,
+		 * and the dimensions after d only over the in-bounds part.
+		 */
+		final long[] dimensions = target.dimensionsAsLongArray();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			min[ d ] = inside.min( d );
+			max[ d ] = inside.max( d );
+		}
+		for ( int d = 0; d < n; d++ )
+		{
+			final long[] slabSize = new long[ n ];
+			for ( int k = 0; k < n; k++ )
+				slabSize[ k ] = max[ k ] - min[ k ] + 1;
+			slabSize[ d ] = 1;
+
+			for ( long p = interval.min( d ); p <= interval.max( d ); p++ )
+			{
+				if ( p >= inside.min( d ) && p <= inside.max( d ) )
+					continue;
+
+				final long[] to = new long[ n ];
+				for ( int k = 0; k < n; k++ )
+					to[ k ] = targetOffset[ k ] + min[ k ] - interval.min( k );
+				to[ d ] = targetOffset[ d ] + p - interval.min( d );
+
+				if ( mode == Mode.MIRROR_SINGLE )
+				{
+					final long[] from = to.clone();
+					from[ d ] = targetOffset[ d ] + mirror( p, source.min( d ), source.max( d ) ) - interval.min( d );
+					BlockCopy.copyBlock( array, kind, dimensions, from, array, kind, dimensions, to, slabSize );
+				}
+				else
+				{
+					BlockCopy.fillBlock( array, kind, dimensions, to, slabSize, value );
+				}
+			}
+			min[ d ] = interval.min( d );
+			max[ d ] = interval.max( d );
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the in-bounds part of a tile pixel by pixel, when the source is
+	 * not backed by arrays. The borders can still be padded with array copies.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private void copyInside( final Interval inside, final RandomAccessibleInterval< ? > target, final long[] offset )
+	{
+		final RandomAccessibleInterval< ? extends RealType< ? > > in = Views.zeroMin( Views.interval( ( RandomAccessibleInterval< ? extends RealType< ? > > ) source, inside ) );
+		final RandomAccessibleInterval< ? extends RealType< ? > > out = Views.offsetInterval( ( RandomAccessibleInterval< ? extends RealType< ? > > ) target, offset, inside.dimensionsAsLongArray() );
+		RealTypeConverters.copyFromTo( in, out );
+	}
+
+	/**
+	 * Returns <code>true</code> if the mirror of every position of the
+	 * interval is in the in-bounds part of the interval.
+	 */
+	private boolean mirrorsInside( final Interval interval, final Interval inside )
+	{
+		for ( int d = 0; d < interval.numDimensions(); d++ )
+		{
+			for ( long p = interval.min( d ); p <= interval.max( d ); p++ )
+			{
+				final long m = mirror( p, source.min( d ), source.max( d ) );
+				if ( m < inside.min( d ) || m > inside.max( d ) )
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the position in [min, max] that mirrors the specified position,
+	 * without repeating the border pixel.
+	 */
+	static long mirror( final long position, final long min, final long max )
+	{
+		final long size = max - min + 1;
+		if ( size == 1 )
+			return min;
+		final long period = 2 * size - 2;
+		long q = ( position - min ) % period;
+		if ( q < 0 )
+			q += period;
+		if ( q >= size )
+			q = period - q;
+		return min + q;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BoundaryPadding " + mode + ( mode == Mode.CONSTANT ? " " + value : "" ) + " of " + Util.printInterval( source );
+	}
+}
@@ -0,0 +1,464 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.ref.WeakRefLoaderCache;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+
+/**
+ * A cache for the cells of lazy output images that keeps the cells in memory
+ * up to a byte budget, instead of relying on soft references.
+ * <p>
+ * The cells are held by strong references as long as they fit in the budget.
+ * When a newly loaded cell exceeds it, cells are evicted according to the
+ * {@link EvictionPolicy}: the least recently used ones, or the ones that are
+ * the cheapest to compute again per byte. Evicted cells are only weakly
+ * referenced, so they stay available as long as something else, for instance
+ * a viewer, uses them.
+ * <p>
+ * Optionally, evicted cells are compressed and kept in a spill tier with its
+ * own byte budget, in least recently spilled order. A cell found in the spill
+ * tier is decompressed instead of being predicted again.
+ * <p>
+ * Invalidating cells removes them from the memory budget and from the spill
+ * tier as well, so that they are predicted again.
+ *
+ * @param <A>
+ *            the type of the cell data.
+ */
+public class BudgetedLoaderCache< A extends ArrayDataAccess< A > > extends WeakRefLoaderCache< Long, Cell< A > >
+{
+
+	/**
+	 * Which cells to evict first when the budget is exceeded.
+	 */
+	public static enum EvictionPolicy
+	{
+		/**
+		 * Evicts the least recently used cells first.
+		 */
+		LRU,
+
+		/**
+		 * Evicts the cells with the lowest computation time per byte first,
+		 * aged so that cells not used for a long time are evicted eventually
+		 * (GreedyDual-Size).
+		 */
+		COST_AWARE;
+	}
+
+	private final long budgetBytes;
+
+	private final EvictionPolicy policy;
+
+	private final long spillBytes;
+
+	private final A accessType;
+
+	/**
+	 * Cells held by strong references, by index. Guarded by this.
+	 */
+	private final Map< Long, Entry > retained = new HashMap<>();
+
+	/**
+	 * Compressed evicted cells, by index, oldest first. Guarded by this.
+	 */
+	private final LinkedHashMap< Long, Spilled > spilled = new LinkedHashMap<>();
+
+	/**
+	 * Computation time of the cells loaded so far, in milliseconds. Guarded by
+	 * this.
+	 */
+	private final Map< Long, Double > costs = new HashMap<>();
+
+	/**
+	 * Guarded by this.
+	 */
+	private long retainedBytes = 0;
+
+	/**
+	 * Guarded by this.
+	 */
+	private long spilledBytes = 0;
+
+	/**
+	 * Access counter for {@link EvictionPolicy#LRU}, and priority of the last
+	 * evicted cell for {@link EvictionPolicy#COST_AWARE}. Guarded by this.
+	 */
+	private double clock = 0;
+
+	/**
+	 * Creates a budgeted cache.
+	 *
+	 * @param budgetBytes
+	 *            the maximal size of the cells held in memory, in bytes.
+	 * @param policy
+	 *            the eviction policy.
+	 * @param spillBytes
+	 *            the maximal size of the compressed evicted cells, in bytes,
+	 *            or 0 to discard evicted cells.
+	 * @param accessType
+	 *            the type of the cell data, to restore spilled cells.
+	 */
+	public BudgetedLoaderCache( final long budgetBytes, final EvictionPolicy policy, final long spillBytes, final A accessType )
+	{
+		this.budgetBytes = budgetBytes;
+		this.policy = policy;
+		this.spillBytes = spillBytes;
+		this.accessType = accessType;
+	}
+
+	@Override
+	public Cell< A > getIfPresent( final Long key )
+	{
+		final Cell< A > cell = super.getIfPresent( key );
+		if ( cell != null )
+			touch( key, cell );
+		return cell;
+	}
+
+	@Override
+	public Cell< A > get( final Long key, final CacheLoader< ? super Long, ? extends Cell< A > > loader ) throws ExecutionException
+	{
+		final Cell< A > present = getIfPresent( key );
+		if ( present != null )
+			return present;
+
+		return super.get( key, k -> {
+			final Spilled s = unspill( k );
+			if ( s != null )
+			{
+				final Cell< A > cell = s.restore();
+				retain( k, cell, getCost( k ) );
+				return cell;
+			}
+
+			final long start = System.nanoTime();
+			final Cell< A > cell = loader.get( k );
+			retain( k, cell, ( System.nanoTime() - start ) / 1e6 );
+			return cell;
+		} );
+	}
+
+	@Override
+	public void invalidate( final Long key )
+	{
+		synchronized ( this )
+		{
+			forget( key );
+		}
+		super.invalidate( key );
+	}
+
+	@Override
+	public void invalidateIf( final long parallelismThreshold, final Predicate< Long > condition )
+	{
+		synchronized ( this )
+		{
+			final Set< Long > keys = new HashSet<>( retained.keySet() );
+			keys.addAll( spilled.keySet() );
+			for ( final Long key : keys )
+				if ( condition.test( key ) )
+					forget( key );
+		}
+		super.invalidateIf( parallelismThreshold, condition );
+	}
+
+	@Override
+	public void invalidateAll( final long parallelismThreshold )
+	{
+		synchronized ( this )
+		{
+			retained.clear();
+			spilled.clear();
+			costs.clear();
+			retainedBytes = 0;
+			spilledBytes = 0;
+		}
+		super.invalidateAll( parallelismThreshold );
+	}
+
+	/**
+	 * Removes a cell from the memory budget and from the spill tier. Must be
+	 * called while holding the lock.
+	 */
+	private void forget( final Long key )
+	{
+		final Entry entry = retained.remove( key );
+		if ( entry != null )
+			retainedBytes -= entry.bytes;
+		final Spilled s = spilled.remove( key );
+		if ( s != null )
+			spilledBytes -= s.compressed.length;
+		costs.remove( key );
+	}
+
+	/**
+	 * Returns the size of the cells held in memory by this cache.
+	 *
+	 * @return the size in bytes.
+	 */
+	public synchronized long getRetainedBytes()
+	{
+		return retainedBytes;
+	}
+
+	/**
+	 * Returns the size of the compressed evicted cells.
+	 *
+	 * @return the size in bytes.
+	 */
+	public synchronized long getSpilledBytes()
+	{
+		return spilledBytes;
+	}
+
+	/**
+	 * Marks a cell as used. A cell evicted but still referenced elsewhere is
+	 * retained again.
+	 */
+	private void touch( final Long key, final Cell< A > cell )
+	{
+		final double costMillis;
+		synchronized ( this )
+		{
+			final Entry entry = retained.get( key );
+			if ( entry != null )
+			{
+				entry.priority = priority( entry );
+				return;
+			}
+			costMillis = costs.getOrDefault( key, 0. );
+		}
+		unspill( key );
+		retain( key, cell, costMillis );
+	}
+
+	private void retain( final Long key, final Cell< A > cell, final double costMillis )
+	{
+		final List< Entry > evicted = new ArrayList<>();
+		synchronized ( this )
+		{
+			costs.put( key, costMillis );
+			final Entry entry = new Entry( key, cell, bytes( cell.getData() ), costMillis );
+			entry.priority = priority( entry );
+			final Entry previous = retained.put( key, entry );
+			if ( previous != null )
+				retainedBytes -= previous.bytes;
+			retainedBytes += entry.bytes;
+
+			while ( retainedBytes > budgetBytes && retained.size() > 1 )
+			{
+				Entry victim = null;
+				for ( final Entry e : retained.values() )
+					if ( e != entry && ( victim == null || e.priority < victim.priority ) )
+						victim = e;
+				retained.remove( victim.key );
+				retainedBytes -= victim.bytes;
+				if ( policy == EvictionPolicy.COST_AWARE )
+					clock = victim.priority;
+				evicted.add( victim );
+			}
+		}
+
+		// Compress outside of the lock.
+		if ( spillBytes > 0 )
+			for ( final Entry e : evicted )
+				spill( e );
+	}
+
+	private synchronized double getCost( final Long key )
+	{
+		return costs.getOrDefault( key, 0. );
+	}
+
+	private double priority( final Entry entry )
+	{
+		switch ( policy )
+		{
+		case COST_AWARE:
+			return clock + entry.costMillis / Math.max( 1, entry.bytes );
+		case LRU:
+		default:
+			return ++clock;
+		}
+	}
+
+	private void spill( final Entry entry )
+	{
+		final Spilled s = new Spilled( entry.cell );
+		synchronized ( this )
+		{
+			if ( retained.containsKey( entry.key ) )
+				return; // Loaded again in the meantime.
+			final Spilled previous = spilled.put( entry.key, s );
+			if ( previous != null )
+				spilledBytes -= previous.compressed.length;
+			spilledBytes += s.compressed.length;
+			while ( spilledBytes > spillBytes && !spilled.isEmpty() )
+			{
+				final Long oldest = spilled.keySet().iterator().next();
+				spilledBytes -= spilled.remove( oldest ).compressed.length;
+			}
+		}
+	}
+
+	private synchronized Spilled unspill( final Long key )
+	{
+		final Spilled s = spilled.remove( key );
+		if ( s != null )
+			spilledBytes -= s.compressed.length;
+		return s;
+	}
+
+	private static long bytes( final ArrayDataAccess< ? > data )
+	{
+		return ( long ) data.getArrayLength() * bytesPerElement( data.getCurrentStorageArray() );
+	}
+
+	private static int bytesPerElement( final Object array )
+	{
+		if ( array instanceof byte[] || array instanceof boolean[] )
+			return 1;
+		if ( array instanceof short[] || array instanceof char[] )
+			return 2;
+		if ( array instanceof int[] || array instanceof float[] )
+			return 4;
+		return 8;
+	}
+
+	private final class Entry
+	{
+
+		private final Long key;
+
+		private final Cell< A > cell;
+
+		private final long bytes;
+
+		private final double costMillis;
+
+		private double priority;
+
+		private Entry( final Long key, final Cell< A > cell, final long bytes, final double costMillis )
+		{
+			this.key = key;
+			this.cell = cell;
+			this.bytes = bytes;
+			this.costMillis = costMillis;
+		}
+	}
+
+	/**
+	 * The data of an evicted cell, compressed with {@link Deflater}.
+	 */
+	private final class Spilled
+	{
+
+		private final int[] dimensions;
+
+		private final long[] min;
+
+		private final int length;
+
+		private final byte[] compressed;
+
+		private Spilled( final Cell< A > cell )
+		{
+			this.dimensions = new int[ cell.numDimensions() ];
+			cell.dimensions( dimensions );
+			this.min = new long[ cell.numDimensions() ];
+			cell.min( min );
+			this.length = cell.getData().getArrayLength();
+
+			final Object array = cell.getData().getCurrentStorageArray();
+			final ByteBuffer buffer = ByteBuffer.allocate( length * bytesPerElement( array ) );
+			if ( array instanceof float[] )
+				buffer.asFloatBuffer().put( ( float[] ) array );
+			else if ( array instanceof double[] )
+				buffer.asDoubleBuffer().put( ( double[] ) array );
+			else if ( array instanceof int[] )
+				buffer.asIntBuffer().put( ( int[] ) array );
+			else if ( array instanceof short[] )
+				buffer.asShortBuffer().put( ( short[] ) array );
+			else if ( array instanceof long[] )
+				buffer.asLongBuffer().put( ( long[] ) array );
+			else if ( array instanceof byte[] )
+				buffer.put( ( byte[] ) array );
+			else
+				throw new IllegalArgumentException( "Cannot spill cells backed by " + array.getClass().getSimpleName() + "." );
+
+			final Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+			try
+			{
+				deflater.setInput( buffer.array() );
+				deflater.finish();
+				final ByteArrayOutputStream out = new ByteArrayOutputStream( buffer.capacity() / 4 );
+				final byte[] chunk = new byte[ 1 << 16 ];
+				while ( !deflater.finished() )
+					out.write( chunk, 0, deflater.deflate( chunk ) );
+				this.compressed = out.toByteArray();
+			}
+			finally
+			{
+				deflater.end();
+			}
+		}
+
+		private Cell< A > restore()
+		{
+			final A data = accessType.createArray( length );
+			final Object array = data.getCurrentStorageArray();
+			final ByteBuffer buffer = ByteBuffer.allocate( length * bytesPerElement( array ) );
+			final Inflater inflater = new Inflater();
+			try
+			{
+				inflater.setInput( compressed );
+				while ( !inflater.finished() && buffer.position() < buffer.capacity() )
+				{
+					final int n = inflater.inflate( buffer.array(), buffer.position(), buffer.remaining() );
+					buffer.position( buffer.position() + n );
+				}
+			}
+			catch ( final DataFormatException e )
+			{
+				e.printStackTrace();
+				throw new RuntimeException( e );
+			}
+			finally
+			{
+				inflater.end();
+			}
+			buffer.rewind();
+
+			if ( array instanceof float[] )
+				buffer.asFloatBuffer().get( ( float[] ) array );
+			else if ( array instanceof double[] )
+				buffer.asDoubleBuffer().get( ( double[] ) array );
+			else if ( array instanceof int[] )
+				buffer.asIntBuffer().get( ( int[] ) array );
+			else if ( array instanceof short[] )
+				buffer.asShortBuffer().get( ( short[] ) array );
+			else if ( array instanceof long[] )
+				buffer.asLongBuffer().get( ( long[] ) array );
+			else
+				buffer.get( ( byte[] ) array );
+			return new Cell<>( dimensions, min, data );
+		}
+	}
+}
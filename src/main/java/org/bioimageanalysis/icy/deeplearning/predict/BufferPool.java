@@ -0,0 +1,100 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.stream.Collectors;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Util;
+
+/**
+ * A bounded pool of images, keyed by their dimensions, so that the buffers
+ * used for each tile can be reused instead of being allocated again.
+ * <p>
+ * Tiles processed by a model only come in a handful of shapes, so in a steady
+ * state all the buffers come from the pool. This class is thread-safe. The
+ * content of an image returned by {@link #acquire(long[])} is undefined.
+ *
+ * @param <T>
+ *            the type of the pixels in the buffers.
+ */
+public class BufferPool< T extends NativeType< T > >
+{
+
+	private final T type;
+
+	private final int maxPerShape;
+
+	private final Map< List< Long >, ConcurrentLinkedDeque< Img< T > > > free = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a pool.
+	 * 
+	 * @param type
+	 *            the type of the pixels in the buffers.
+	 * @param maxPerShape
+	 *            the maximal number of buffers to keep for each shape. Should
+	 *            be at least the number of threads using the pool.
+	 */
+	public BufferPool( final T type, final int maxPerShape )
+	{
+		this.type = type;
+		this.maxPerShape = maxPerShape;
+	}
+
+	/**
+	 * Creates a pool that keeps one buffer per shape for each available
+	 * processor.
+	 * 
+	 * @param type
+	 *            the type of the pixels in the buffers.
+	 */
+	public BufferPool( final T type )
+	{
+		this( type, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Returns an image with the specified dimensions, with origin at 0. It
+	 * must be given back with {@link #release(Img)} when not used anymore.
+	 * 
+	 * @param dimensions
+	 *            the dimensions of the image.
+	 * @return an image, recycled if possible.
+	 */
+	public Img< T > acquire( final long[] dimensions )
+	{
+		final ConcurrentLinkedDeque< Img< T > > deque = free.get( key( dimensions ) );
+		if ( deque != null )
+		{
+			final Img< T > img = deque.pollFirst();
+			if ( img != null )
+				return img;
+		}
+		return Util.getArrayOrCellImgFactory( new FinalInterval( dimensions ), type ).create( dimensions );
+	}
+
+	/**
+	 * Gives back an image acquired from this pool. It is discarded if the
+	 * pool already holds enough images of this shape.
+	 * 
+	 * @param img
+	 *            the image to give back.
+	 */
+	public void release( final Img< T > img )
+	{
+		final ConcurrentLinkedDeque< Img< T > > deque = free.computeIfAbsent( key( img.dimensionsAsLongArray() ), k -> new ConcurrentLinkedDeque<>() );
+		if ( deque.size() < maxPerShape )
+			deque.offerFirst( img );
+	}
+
+	private static List< Long > key( final long[] dimensions )
+	{
+		return Arrays.stream( dimensions ).boxed().collect( Collectors.toList() );
+	}
+}
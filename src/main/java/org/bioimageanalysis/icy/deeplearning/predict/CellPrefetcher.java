@@ -0,0 +1,263 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import net.imglib2.Interval;
+import net.imglib2.cache.Cache;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Speculatively predicts the cells next to the ones recently requested, when
+ * the scheduler has nothing else to do.
+ * <p>
+ * The prefetcher records the grid positions of the cells requested by the
+ * viewer, and estimates the direction in which the user is moving along X, Y
+ * and Z. When the {@link CellScheduler} can predict a speculative cell, it loads
+ * the cells ahead of the last requested one in this direction, then its
+ * other neighbours, up to a budget of cells per request. The cells are loaded
+ * through the cache of the lazy output image, so they are stored there as
+ * any other cell, and as speculative requests of the scheduler, so they
+ * never go before a demand load, only use the workers the scheduler allows
+ * for speculative requests, and are dropped as soon as a cell is requested.
+ * A prediction already running is not interrupted.
+ * <p>
+ * The prefetcher thread runs until {@link #stop()} is called, or until the
+ * scheduler is shut down.
+ */
+public class CellPrefetcher
+{
+
+	/**
+	 * Number of recent requests used to estimate the direction of motion.
+	 */
+	private static final int HISTORY = 8;
+
+	private static final long POLL_MILLIS = 20;
+
+	private final CellGrid grid;
+
+	private final boolean[] spatial;
+
+	private final CellScheduler scheduler;
+
+	private final int budget;
+
+	/**
+	 * Most recent requested grid positions first. Guarded by this.
+	 */
+	private final Deque< long[] > history = new ArrayDeque<>();
+
+	/**
+	 * Cells left to prefetch for the last request. Guarded by this.
+	 */
+	private final Deque< Long > candidates = new ArrayDeque<>();
+
+	private volatile Cache< Long, ? > cache;
+
+	private final Thread thread;
+
+	/**
+	 * Creates a prefetcher and starts its thread. It is stopped with the
+	 * scheduler.
+	 *
+	 * @param grid
+	 *            the cell grid of the lazy output image.
+	 * @param axes
+	 *            the axes of the lazy output image, to find X, Y and Z.
+	 * @param scheduler
+	 *            the scheduler the lazy output image uses.
+	 * @param budget
+	 *            the maximal number of cells to prefetch after each request.
+	 */
+	public CellPrefetcher( final CellGrid grid, final String axes, final CellScheduler scheduler, final int budget )
+	{
+		this.grid = grid;
+		this.scheduler = scheduler;
+		this.budget = budget;
+		this.spatial = new boolean[ grid.numDimensions() ];
+		for ( int d = 0; d < spatial.length; d++ )
+			spatial[ d ] = "xyz".indexOf( axes.charAt( d ) ) >= 0;
+		this.thread = new Thread( this::run, "prediction-prefetcher" );
+		thread.setDaemon( true );
+		thread.start();
+		scheduler.addPrefetcher( this );
+	}
+
+	/**
+	 * Sets the cache to load the cells from. Prefetching starts once it is
+	 * set.
+	 *
+	 * @param cache
+	 *            the cache of the lazy output image.
+	 */
+	public void setCache( final Cache< Long, ? > cache )
+	{
+		this.cache = cache;
+	}
+
+	/**
+	 * Records that the specified cell was requested. Must be called by the
+	 * loader of the lazy output image. Requests made by this prefetcher are
+	 * ignored.
+	 *
+	 * @param cell
+	 *            the requested cell.
+	 */
+	public void requested( final Interval cell )
+	{
+		if ( CellScheduler.isPrefetching() )
+			return;
+		final long[] position = new long[ grid.numDimensions() ];
+		for ( int d = 0; d < position.length; d++ )
+			position[ d ] = cell.min( d ) / grid.cellDimension( d );
+		requested( position );
+	}
+
+	/**
+	 * Stops the prefetcher thread. The cell being prefetched, if any, is
+	 * still predicted.
+	 */
+	public void stop()
+	{
+		thread.interrupt();
+	}
+
+	private synchronized void requested( final long[] position )
+	{
+		history.addFirst( position );
+		while ( history.size() > HISTORY )
+			history.removeLast();
+
+		candidates.clear();
+		candidates.addAll( getCandidates( position, getDirection() ) );
+	}
+
+	/**
+	 * Returns the sign of the motion along each dimension, comparing the
+	 * mean position of the most recent half of the history with the mean
+	 * position of the oldest half.
+	 */
+	private int[] getDirection()
+	{
+		final int n = grid.numDimensions();
+		final int[] direction = new int[ n ];
+		final int half = history.size() / 2;
+		if ( half == 0 )
+			return direction;
+
+		final double[] recent = new double[ n ];
+		final double[] old = new double[ n ];
+		int i = 0;
+		for ( final long[] position : history )
+		{
+			final double[] sum = ( i++ < half ) ? recent : old;
+			for ( int d = 0; d < n; d++ )
+				sum[ d ] += position[ d ];
+		}
+		final int nOld = history.size() - half;
+		for ( int d = 0; d < n; d++ )
+			if ( spatial[ d ] )
+				direction[ d ] = ( int ) Math.signum( recent[ d ] / half - old[ d ] / nOld );
+		return direction;
+	}
+
+	/**
+	 * Returns the indices of the cells to prefetch around the specified
+	 * position: first the cells ahead in the direction of motion, then the
+	 * direct neighbours along X, Y and Z, the ones in the direction of motion
+	 * first.
+	 */
+	private List< Long > getCandidates( final long[] position, final int[] direction )
+	{
+		final int n = grid.numDimensions();
+		final List< Long > list = new ArrayList<>();
+
+		boolean moving = false;
+		for ( int d = 0; d < n; d++ )
+			moving |= direction[ d ] != 0;
+		if ( moving )
+		{
+			for ( int step = 1; step <= budget; step++ )
+			{
+				final long[] p = position.clone();
+				for ( int d = 0; d < n; d++ )
+					p[ d ] += step * direction[ d ];
+				addIfInGrid( list, p );
+			}
+		}
+
+		for ( final int sign : new int[] { 1, -1 } )
+		{
+			for ( int d = 0; d < n; d++ )
+			{
+				if ( !spatial[ d ] )
+					continue;
+				final long[] p = position.clone();
+				p[ d ] += ( direction[ d ] == 0 ? 1 : direction[ d ] ) * sign;
+				addIfInGrid( list, p );
+			}
+		}
+
+		return list.subList( 0, Math.min( budget, list.size() ) );
+	}
+
+	private void addIfInGrid( final List< Long > list, final long[] position )
+	{
+		final long[] gridDimensions = grid.getGridDimensions();
+		for ( int d = 0; d < position.length; d++ )
+			if ( position[ d ] < 0 || position[ d ] >= gridDimensions[ d ] )
+				return;
+		final long index = IntervalIndexer.positionToIndex( position, gridDimensions );
+		if ( !list.contains( index ) )
+			list.add( index );
+	}
+
+	private synchronized Long nextCandidate()
+	{
+		return candidates.pollFirst();
+	}
+
+	private void run()
+	{
+		while ( !Thread.currentThread().isInterrupted() )
+		{
+			try
+			{
+				Thread.sleep( POLL_MILLIS );
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+
+			final Cache< Long, ? > c = cache;
+			if ( c == null || !scheduler.canPrefetch() )
+				continue;
+
+			final Long index = nextCandidate();
+			if ( index == null || c.getIfPresent( index ) != null )
+				continue;
+
+			CellScheduler.prefetch( () -> {
+				try
+				{
+					c.get( index );
+				}
+				catch ( final CancellationException e )
+				{
+					// A cell was requested in the meantime.
+				}
+				catch ( final Exception e )
+				{
+					if ( !( e.getCause() instanceof CancellationException ) )
+						e.printStackTrace();
+				}
+			} );
+		}
+	}
+}
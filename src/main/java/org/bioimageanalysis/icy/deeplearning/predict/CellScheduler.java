@@ -0,0 +1,578 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * Schedules the prediction of the cells requested by the cache loaders of
+ * lazy output images, for interactive viewing.
+ * <p>
+ * The loader threads submit their cell and wait for it, but the cells are
+ * predicted by the worker threads of the scheduler, in the following order:
+ * <ol>
+ * <li>requests that were not deferred, before deferred ones;
+ * <li>cells that intersect the visible interval set with
+ * {@link #setVisibleInterval(Interval)}, before the others;
+ * <li>recent requests before stale ones, that is requests that have been
+ * waiting for longer than the specified time;
+ * <li>the most recent requests first.
+ * </ol>
+ * A request for a cell already waiting or being predicted is coalesced with
+ * it: the model runs once and the result is copied to both cells. Pending
+ * requests that are not wanted anymore can be deferred with
+ * {@link #cancelIf(Predicate)}: they are predicted after all the other
+ * requests, so that the loader threads waiting for them, which may belong to
+ * a viewer or to any code reading the lazy image, do not fail. A deferred
+ * request for a cell that is requested again is not deferred anymore. Only
+ * speculative requests are dropped, and only {@link #shutdown()} fails the
+ * loaders waiting for a cell, with a {@link CancellationException}.
+ * <p>
+ * Cells requested from within {@link #prefetch(Runnable)} are speculative:
+ * they are predicted after all the other requests, and they are dropped as
+ * soon as a cell is requested outside of it. At most a specified number of
+ * workers predict speculative cells at the same time, so that the other
+ * workers, and the model instances they use, are always free for the cells
+ * requested for real. A speculative prediction already running is not
+ * interrupted, and a loader reading the same cell through the cache of the
+ * lazy image waits for it.
+ * <p>
+ * The {@link CellPrefetcher}s using this scheduler are stopped with it, see
+ * {@link #shutdown()}.
+ */
+public class CellScheduler
+{
+
+	/**
+	 * Whether the current thread submits speculative requests.
+	 */
+	private static final ThreadLocal< Boolean > PREFETCHING = ThreadLocal.withInitial( () -> false );
+
+	private final long staleMillis;
+
+	private final Thread[] workers;
+
+	/**
+	 * Requests waiting for a worker. Guarded by this.
+	 */
+	private final List< Request > pending = new ArrayList<>();
+
+	/**
+	 * Requests waiting or running, by key. Guarded by this.
+	 */
+	private final Map< List< Object >, Request > requests = new HashMap<>();
+
+	/**
+	 * Guarded by this.
+	 */
+	private long sequence = 0;
+
+	/**
+	 * Number of requests being predicted. Guarded by this.
+	 */
+	private int running = 0;
+
+	/**
+	 * Number of speculative requests being predicted. Guarded by this.
+	 */
+	private int runningPrefetches = 0;
+
+	private final int prefetchWorkers;
+
+	/**
+	 * The prefetchers to stop with this scheduler. Guarded by this.
+	 */
+	private final List< CellPrefetcher > prefetchers = new ArrayList<>();
+
+	/**
+	 * Guarded by this.
+	 */
+	private boolean shutdown = false;
+
+	private volatile Interval visible;
+
+	/**
+	 * Creates a scheduler and starts its worker threads. All the workers but
+	 * one can predict speculative cells, so that a single worker never
+	 * predicts speculative cells.
+	 *
+	 * @param nWorkers
+	 *            the number of cells to predict in parallel. Should be the
+	 *            number of model instances.
+	 * @param staleMillis
+	 *            the time after which a request not predicted yet is
+	 *            considered stale, in milliseconds.
+	 */
+	public CellScheduler( final int nWorkers, final long staleMillis )
+	{
+		this( nWorkers, staleMillis, nWorkers - 1 );
+	}
+
+	/**
+	 * Creates a scheduler and starts its worker threads.
+	 *
+	 * @param nWorkers
+	 *            the number of cells to predict in parallel. Should be the
+	 *            number of model instances.
+	 * @param staleMillis
+	 *            the time after which a request not predicted yet is
+	 *            considered stale, in milliseconds.
+	 * @param prefetchWorkers
+	 *            the maximal number of workers predicting speculative cells
+	 *            at the same time. The other workers are reserved for the
+	 *            cells requested for real. 0 disables speculative
+	 *            predictions, <code>nWorkers</code> lets a speculative
+	 *            prediction delay a real request until it completes.
+	 */
+	public CellScheduler( final int nWorkers, final long staleMillis, final int prefetchWorkers )
+	{
+		if ( prefetchWorkers < 0 || prefetchWorkers > nWorkers )
+			throw new IllegalArgumentException( "The number of prefetch workers must be between 0 and " + nWorkers + ", but got " + prefetchWorkers + "." );
+		this.staleMillis = staleMillis;
+		this.prefetchWorkers = prefetchWorkers;
+		this.workers = new Thread[ nWorkers ];
+		for ( int i = 0; i < nWorkers; i++ )
+		{
+			workers[ i ] = new Thread( this::work, "prediction-scheduler-" + i );
+			workers[ i ].setDaemon( true );
+			workers[ i ].start();
+		}
+	}
+
+	/**
+	 * Returns a predictor that goes through this scheduler: the calling
+	 * thread waits while the cell is predicted by a worker thread. The cells
+	 * must be laid out as the lazy images, with XYZ axes.
+	 *
+	 * @param <O>
+	 *            the type of the pixels in the output.
+	 * @param predictor
+	 *            the predictor to schedule.
+	 * @return a predictor to use in place of the specified one.
+	 */
+	public < O extends RealType< O > > Consumer< RandomAccessibleInterval< O > > wrap( final Consumer< RandomAccessibleInterval< O > > predictor )
+	{
+		return wrap( predictor, "xyz" );
+	}
+
+	/**
+	 * Returns a predictor that goes through this scheduler: the calling
+	 * thread waits while the cell is predicted by a worker thread. The cells
+	 * are laid out as specified, for instance as the model output, and are
+	 * mapped to the XYZ axes of the lazy images to be compared with the
+	 * visible interval.
+	 *
+	 * @param <O>
+	 *            the type of the pixels in the output.
+	 * @param predictor
+	 *            the predictor to schedule.
+	 * @param cellAxes
+	 *            the axes of the cells, for instance "bczyx".
+	 * @return a predictor to use in place of the specified one.
+	 */
+	public < O extends RealType< O > > Consumer< RandomAccessibleInterval< O > > wrap( final Consumer< RandomAccessibleInterval< O > > predictor, final String cellAxes )
+	{
+		return cell -> {
+			try
+			{
+				submit( predictor, cell, cellAxes ).get();
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+			catch ( final ExecutionException e )
+			{
+				if ( e.getCause() instanceof RuntimeException )
+					throw ( RuntimeException ) e.getCause();
+				throw new RuntimeException( e.getCause() );
+			}
+		};
+	}
+
+	/**
+	 * Sets the interval, in the XYZ output coordinates of the lazy images,
+	 * that is currently visible. Cells intersecting it are predicted first.
+	 *
+	 * @param visible
+	 *            the visible interval, or <code>null</code> to consider all
+	 *            cells visible.
+	 */
+	public void setVisibleInterval( final Interval visible )
+	{
+		this.visible = visible;
+	}
+
+	/**
+	 * Defers the pending requests for the cells matching the specified
+	 * condition after all the other requests, and drops the speculative ones.
+	 * Cells already being predicted are not affected.
+	 *
+	 * @param condition
+	 *            the condition on the cell interval, in the XYZ output
+	 *            coordinates of the lazy images.
+	 * @return the number of requests deferred or dropped.
+	 */
+	public synchronized int cancelIf( final Predicate< Interval > condition )
+	{
+		int count = cancelIf( request -> request.prefetch && condition.test( request.xyzCell ), "it was not wanted anymore" );
+		for ( final Request request : pending )
+		{
+			if ( !request.deferred && condition.test( request.xyzCell ) )
+			{
+				request.deferred = true;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private synchronized int cancelIf( final Predicate< Request > condition, final String reason )
+	{
+		int count = 0;
+		final Iterator< Request > it = pending.iterator();
+		while ( it.hasNext() )
+		{
+			final Request request = it.next();
+			if ( condition.test( request ) )
+			{
+				it.remove();
+				requests.remove( request.key );
+				request.future.completeExceptionally( new CancellationException( "Prediction of cell " + Util.printInterval( request.cell ) + " was cancelled because " + reason + "." ) );
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Defers all the pending requests for cells that do not intersect the
+	 * visible interval, and drops the speculative ones.
+	 *
+	 * @return the number of requests deferred or dropped.
+	 */
+	public int cancelInvisible()
+	{
+		return cancelIf( cell -> !isVisible( cell ) );
+	}
+
+	/**
+	 * Returns <code>true</code> if no request is waiting and at least one
+	 * worker is free.
+	 *
+	 * @return whether the scheduler is idle.
+	 */
+	public synchronized boolean isIdle()
+	{
+		return pending.isEmpty() && running < workers.length;
+	}
+
+	/**
+	 * Returns <code>true</code> if no request is waiting and a worker is free
+	 * to predict a speculative cell.
+	 *
+	 * @return whether a speculative request would start right away.
+	 */
+	public synchronized boolean canPrefetch()
+	{
+		return pending.isEmpty() && running < workers.length && runningPrefetches < prefetchWorkers;
+	}
+
+	/**
+	 * Runs the specified code so that the cells it requests through this
+	 * scheduler are speculative.
+	 *
+	 * @param code
+	 *            the code to run.
+	 */
+	public static void prefetch( final Runnable code )
+	{
+		PREFETCHING.set( true );
+		try
+		{
+			code.run();
+		}
+		finally
+		{
+			PREFETCHING.set( false );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the current thread is running in
+	 * {@link #prefetch(Runnable)}.
+	 *
+	 * @return whether the current thread submits speculative requests.
+	 */
+	public static boolean isPrefetching()
+	{
+		return PREFETCHING.get();
+	}
+
+	/**
+	 * Returns the number of requests waiting for a worker.
+	 *
+	 * @return the number of pending requests.
+	 */
+	public synchronized int getPendingCount()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * Stops the worker threads and the prefetchers using this scheduler.
+	 * Pending requests are cancelled: their loaders fail with a
+	 * {@link CancellationException}.
+	 */
+	public void shutdown()
+	{
+		final List< CellPrefetcher > stopped;
+		synchronized ( this )
+		{
+			shutdown = true;
+			stopped = new ArrayList<>( prefetchers );
+			prefetchers.clear();
+		}
+		stopped.forEach( CellPrefetcher::stop );
+		cancelIf( request -> true, "the scheduler was shut down" );
+		for ( final Thread worker : workers )
+			worker.interrupt();
+	}
+
+	/**
+	 * Registers a prefetcher to stop with this scheduler. Stops it right away
+	 * if this scheduler is shut down.
+	 */
+	void addPrefetcher( final CellPrefetcher prefetcher )
+	{
+		synchronized ( this )
+		{
+			if ( !shutdown )
+			{
+				prefetchers.add( prefetcher );
+				return;
+			}
+		}
+		prefetcher.stop();
+	}
+
+	private synchronized < O extends RealType< O > > CompletableFuture< Void > submit( final Consumer< RandomAccessibleInterval< O > > predictor, final RandomAccessibleInterval< O > cell, final String cellAxes )
+	{
+		final boolean prefetch = isPrefetching();
+		final List< Object > key = Arrays.asList( predictor, Arrays.toString( cell.minAsLongArray() ), Arrays.toString( cell.maxAsLongArray() ) );
+		final Request existing = requests.get( key );
+		if ( existing != null )
+		{
+			// A speculative request for this cell becomes a regular one,
+			// before the other speculative requests are dropped.
+			existing.requestTime = System.currentTimeMillis();
+			existing.sequence = ++sequence;
+			existing.prefetch &= prefetch;
+			existing.deferred &= prefetch;
+			if ( !prefetch )
+				cancelIf( r -> r.prefetch, "a cell was requested" );
+			notifyAll();
+
+			// Coalesce: the cell is predicted once and copied.
+			final CompletableFuture< Void > copied = new CompletableFuture<>();
+			existing.duplicates.add( () -> {
+				try
+				{
+					@SuppressWarnings( "unchecked" )
+					final RandomAccessibleInterval< O > source = ( RandomAccessibleInterval< O > ) existing.cell;
+					RealTypeConverters.copyFromTo( source, cell );
+					copied.complete( null );
+				}
+				catch ( final RuntimeException e )
+				{
+					copied.completeExceptionally( e );
+				}
+			} );
+			existing.future.whenComplete( ( v, t ) -> {
+				if ( t != null )
+					copied.completeExceptionally( t );
+			} );
+			return copied;
+		}
+
+		if ( !prefetch )
+			cancelIf( r -> r.prefetch, "a cell was requested" );
+
+		final Request request = new Request( key, cell, AxesMatcher.matchInterval( "xyz", cellAxes, cell ), () -> predictor.accept( cell ) );
+		request.requestTime = System.currentTimeMillis();
+		request.sequence = ++sequence;
+		request.prefetch = prefetch;
+		pending.add( request );
+		requests.put( key, request );
+		notifyAll();
+		return request.future;
+	}
+
+	private void work()
+	{
+		while ( !Thread.currentThread().isInterrupted() )
+		{
+			Request request;
+			final boolean prefetch;
+			synchronized ( this )
+			{
+				try
+				{
+					while ( ( request = pollBest() ) == null )
+						wait();
+				}
+				catch ( final InterruptedException e )
+				{
+					return;
+				}
+				prefetch = request.prefetch;
+				running++;
+				if ( prefetch )
+					runningPrefetches++;
+			}
+
+			try
+			{
+				request.task.run();
+				final List< Runnable > duplicates;
+				synchronized ( this )
+				{
+					requests.remove( request.key );
+					duplicates = new ArrayList<>( request.duplicates );
+					finished( prefetch );
+				}
+				request.future.complete( null );
+				duplicates.forEach( Runnable::run );
+			}
+			catch ( final Throwable t )
+			{
+				synchronized ( this )
+				{
+					requests.remove( request.key );
+					finished( prefetch );
+				}
+				request.future.completeExceptionally( t );
+			}
+		}
+	}
+
+	/**
+	 * Counts a finished request, and wakes up the workers waiting for a
+	 * speculative request to be allowed. Must be called while holding the
+	 * lock.
+	 */
+	private void finished( final boolean prefetch )
+	{
+		running--;
+		if ( prefetch )
+		{
+			runningPrefetches--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Removes and returns the pending request to predict first, or returns
+	 * <code>null</code> if there is none, or if only speculative requests are
+	 * pending and enough workers predict speculative cells. Must be called
+	 * while holding the lock.
+	 */
+	private Request pollBest()
+	{
+		final long now = System.currentTimeMillis();
+		final boolean prefetchAllowed = runningPrefetches < prefetchWorkers;
+		Request best = null;
+		for ( final Request request : pending )
+			if ( ( prefetchAllowed || !request.prefetch ) && ( best == null || compare( request, best, now ) > 0 ) )
+				best = request;
+		if ( best != null )
+			pending.remove( best );
+		return best;
+	}
+
+	/**
+	 * Returns a positive number if {@code r1} should be predicted before
+	 * {@code r2}.
+	 */
+	private int compare( final Request r1, final Request r2, final long now )
+	{
+		final int p = Boolean.compare( r2.prefetch, r1.prefetch );
+		if ( p != 0 )
+			return p;
+		final int d = Boolean.compare( r2.deferred, r1.deferred );
+		if ( d != 0 )
+			return d;
+		final int v = Boolean.compare( isVisible( r1.xyzCell ), isVisible( r2.xyzCell ) );
+		if ( v != 0 )
+			return v;
+		final int s = Boolean.compare( now - r1.requestTime <= staleMillis, now - r2.requestTime <= staleMillis );
+		if ( s != 0 )
+			return s;
+		return Long.compare( r1.sequence, r2.sequence );
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified cell, in XYZ output
+	 * coordinates, intersects the visible interval.
+	 */
+	private boolean isVisible( final Interval cell )
+	{
+		final Interval v = visible;
+		return v == null || !Intervals.isEmpty( Intervals.intersect( v, cell ) );
+	}
+
+	private static final class Request
+	{
+
+		private final List< Object > key;
+
+		/**
+		 * The cell the task writes into.
+		 */
+		private final RandomAccessibleInterval< ? > cell;
+
+		/**
+		 * The cell interval, in the XYZ output coordinates of the lazy
+		 * images.
+		 */
+		private final Interval xyzCell;
+
+		private final Runnable task;
+
+		private final List< Runnable > duplicates = new ArrayList<>();
+
+		private final CompletableFuture< Void > future = new CompletableFuture<>();
+
+		private long requestTime;
+
+		private long sequence;
+
+		private boolean prefetch;
+
+		private boolean deferred;
+
+		private Request( final List< Object > key, final RandomAccessibleInterval< ? > cell, final Interval xyzCell, final Runnable task )
+		{
+			this.key = key;
+			this.cell = cell;
+			this.xyzCell = xyzCell;
+			this.task = task;
+		}
+	}
+}
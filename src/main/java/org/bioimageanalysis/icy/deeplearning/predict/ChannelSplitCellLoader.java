@@ -0,0 +1,181 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.bioimageanalysis.icy.deeplearning.predict.SuperTileCellLoader.CellInserter;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Loads the cells of one lazy XYZ image per output channel, from predictions
+ * made in the model output layout.
+ * <p>
+ * The model predicts all the channels of a tile at once, in its own axes
+ * order, for instance 'bczyx'. This loader transposes the prediction once,
+ * when the cells are loaded, so that each channel is cached as its own
+ * xyz-contiguous cells, and reading one channel goes through memory
+ * sequentially. Only the channels requested are cached. When the cell of one
+ * channel is loaded, the cells of the other channels at the same position
+ * are inserted in their caches with {@link CellInserter}, so that the tile is
+ * predicted once.
+ *
+ * @param <T>
+ *            the type of the pixels in the output.
+ */
+public class ChannelSplitCellLoader< T extends RealType< T > & NativeType< T > >
+{
+
+	private final Consumer< RandomAccessibleInterval< T > > predictor;
+
+	private final String outputAxes;
+
+	private final CellGrid grid;
+
+	private final long nChannels;
+
+	private final int[] channels;
+
+	private final T type;
+
+	private final CellInserter< T >[] inserters;
+
+	private final ConcurrentHashMap< Long, CompletableFuture< RandomAccessibleInterval< T > > > inProgress = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a channel-splitting loader.
+	 *
+	 * @param predictor
+	 *            the predictor to fill a tile in the model output layout.
+	 * @param outputAxes
+	 *            the model output axes.
+	 * @param grid
+	 *            the cell grid of the XYZ images.
+	 * @param nChannels
+	 *            the number of channels in the model output.
+	 * @param channels
+	 *            the channels to cache.
+	 * @param type
+	 *            the type of the pixels in the output.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public ChannelSplitCellLoader( final Consumer< RandomAccessibleInterval< T > > predictor, final String outputAxes, final CellGrid grid, final long nChannels, final int[] channels, final T type )
+	{
+		this.predictor = predictor;
+		this.outputAxes = outputAxes;
+		this.grid = grid;
+		this.nChannels = nChannels;
+		this.channels = channels;
+		this.type = type;
+		this.inserters = new CellInserter[ channels.length ];
+	}
+
+	/**
+	 * Sets the method used to insert the cells of the specified channel in
+	 * its cache. If not set, these cells are predicted again when requested.
+	 *
+	 * @param i
+	 *            the index of the channel in the channels to cache.
+	 * @param inserter
+	 *            the cell inserter.
+	 */
+	public void setCellInserter( final int i, final CellInserter< T > inserter )
+	{
+		inserters[ i ] = inserter;
+	}
+
+	/**
+	 * Returns the loader for the cells of the specified channel.
+	 *
+	 * @param i
+	 *            the index of the channel in the channels to cache.
+	 * @return a cell loader.
+	 */
+	public CellLoader< T > forChannel( final int i )
+	{
+		return cell -> load( i, cell );
+	}
+
+	private void load( final int i, final RandomAccessibleInterval< T > cell ) throws Exception
+	{
+		final long[] gridPosition = new long[ grid.numDimensions() ];
+		for ( int d = 0; d < gridPosition.length; d++ )
+			gridPosition[ d ] = cell.min( d ) / grid.cellDimension( d );
+		final long index = IntervalIndexer.positionToIndex( gridPosition, grid.getGridDimensions() );
+
+		final CompletableFuture< RandomAccessibleInterval< T > > future = new CompletableFuture<>();
+		final CompletableFuture< RandomAccessibleInterval< T > > previous = inProgress.putIfAbsent( index, future );
+		if ( previous != null )
+		{
+			// Another channel of this tile is being predicted.
+			RealTypeConverters.copyFromTo( channel( previous.get(), channels[ i ] ), cell );
+			return;
+		}
+
+		try
+		{
+			final Interval tileInterval = getTileInterval( cell );
+			final RandomAccessibleInterval< T > tile = Views.translate(
+					Util.getArrayOrCellImgFactory( tileInterval, type ).create( tileInterval ),
+					tileInterval.minAsLongArray() );
+			predictor.accept( tile );
+			future.complete( tile );
+
+			RealTypeConverters.copyFromTo( channel( tile, channels[ i ] ), cell );
+			for ( int j = 0; j < channels.length; j++ )
+			{
+				if ( j == i || inserters[ j ] == null )
+					continue;
+				final int c = channels[ j ];
+				inserters[ j ].insert( index, other -> RealTypeConverters.copyFromTo( channel( tile, c ), other ) );
+			}
+		}
+		catch ( final Exception e )
+		{
+			future.completeExceptionally( e );
+			throw e;
+		}
+		finally
+		{
+			inProgress.remove( index );
+		}
+	}
+
+	/**
+	 * Returns the interval, in the model output layout, of all the channels
+	 * of the tile at the position of the specified XYZ cell.
+	 */
+	private Interval getTileInterval( final Interval xyzCell )
+	{
+		final long[] min = new long[ 4 ];
+		final long[] max = new long[ 4 ];
+		max[ 0 ] = nChannels - 1;
+		for ( int d = 0; d < 3; d++ )
+		{
+			min[ d + 1 ] = xyzCell.min( d );
+			max[ d + 1 ] = xyzCell.max( d );
+		}
+		return AxesMatcher.matchInterval( outputAxes, "cxyz", new FinalInterval( min, max ) );
+	}
+
+	/**
+	 * Returns the XYZ view of one channel of a tile in the model output
+	 * layout.
+	 */
+	private RandomAccessibleInterval< T > channel( final RandomAccessibleInterval< T > tile, final int c )
+	{
+		final RandomAccessibleInterval< T > cxyz = AxesMatcher.matchAxes( "cxyz", outputAxes, tile );
+		return Views.hyperSlice( cxyz, 0, c );
+	}
+}
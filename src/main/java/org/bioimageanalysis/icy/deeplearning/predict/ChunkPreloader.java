@@ -0,0 +1,142 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.converter.AbstractConvertedRandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Loads the storage chunks of a lazy input covered by an input tile in
+ * parallel, before the tile is copied, so that the chunks read from disk are
+ * decoded concurrently instead of one after the other by the copy.
+ * <p>
+ * The chunks are the cells of the cached cell image the input is read from,
+ * before its conversion to the model input type, see
+ * {@link #findCellImg(RandomAccessibleInterval)}. They are loaded on a pool
+ * of daemon threads shared by all the preloaders, so that neither the
+ * threads predicting the cells nor the common fork-join pool block on the
+ * disk reads of other chunks.
+ */
+public class ChunkPreloader
+{
+
+	private static final ExecutorService EXECUTOR;
+	static
+	{
+		final AtomicInteger threadCount = new AtomicInteger();
+		EXECUTOR = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), r -> {
+			final Thread thread = new Thread( r, "chunk-preloader-" + threadCount.getAndIncrement() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	private final CachedCellImg< ?, ? > source;
+
+	private final String inputAxes;
+
+	/**
+	 * Creates a preloader.
+	 *
+	 * @param source
+	 *            the cached cell image the XYZ input is read from.
+	 * @param inputAxes
+	 *            the axes of the model input, in which the tile intervals
+	 *            are given.
+	 */
+	public ChunkPreloader( final CachedCellImg< ?, ? > source, final String inputAxes )
+	{
+		this.source = source;
+		this.inputAxes = inputAxes;
+	}
+
+	/**
+	 * Loads the chunks covered by the specified interval of the model input,
+	 * and waits for them. Does nothing if the interval covers a single chunk,
+	 * which the copy loads anyway.
+	 *
+	 * @param inputInterval
+	 *            the interval of the model input. It may extend past the
+	 *            input borders.
+	 */
+	public void preload( final Interval inputInterval )
+	{
+		final Interval xyz = Intervals.intersect( source, AxesMatcher.matchInterval( "xyz", inputAxes, inputInterval ) );
+		if ( Intervals.isEmpty( xyz ) )
+			return;
+
+		final CellGrid grid = source.getCellGrid();
+		final int n = grid.numDimensions();
+		final long[] firstCell = new long[ n ];
+		final long[] nCells = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			final int cellSize = grid.cellDimension( d );
+			firstCell[ d ] = ( xyz.min( d ) - source.min( d ) ) / cellSize;
+			nCells[ d ] = ( xyz.max( d ) - source.min( d ) ) / cellSize - firstCell[ d ] + 1;
+		}
+		final long total = Intervals.numElements( nCells );
+		if ( total <= 1 )
+			return;
+
+		final List< Future< ? > > loads = new ArrayList<>();
+		for ( long i = 0; i < total; i++ )
+		{
+			final long index = i;
+			loads.add( EXECUTOR.submit( () -> {
+				final long[] position = new long[ n ];
+				IntervalIndexer.indexToPositionWithOffset( index, nCells, firstCell, position );
+				final RandomAccess< ? > cells = source.getCells().randomAccess();
+				cells.setPosition( position );
+				cells.get();
+			} ) );
+		}
+		try
+		{
+			for ( final Future< ? > load : loads )
+				load.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			loads.forEach( load -> load.cancel( false ) );
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * Returns the cell image the specified image is a converted view of, or
+	 * the image itself if it is a cell image, or <code>null</code> if it is
+	 * neither. The cell grid of the result is the chunk grid of the image.
+	 *
+	 * @param image
+	 *            the image, for instance the XYZ input converted to
+	 *            {@code FloatType}.
+	 * @return the cell image, or <code>null</code>.
+	 */
+	public static AbstractCellImg< ?, ?, ?, ? > findCellImg( final RandomAccessibleInterval< ? > image )
+	{
+		RandomAccessibleInterval< ? > source = image;
+		while ( source instanceof AbstractConvertedRandomAccessibleInterval )
+			source = ( ( AbstractConvertedRandomAccessibleInterval< ?, ? > ) source ).getSource();
+		return ( source instanceof AbstractCellImg ) ? ( AbstractCellImg< ?, ?, ?, ? > ) source : null;
+	}
+}
@@ -0,0 +1,608 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.yaml.snakeyaml.Yaml;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.NativeImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
+
+/**
+ * Stores the cells of an image as one file per cell in a local folder.
+ * <p>
+ * The layout follows the N5 format, so that the stored images can be read
+ * by other tools: the folder contains an {@code attributes.json} file with
+ * the image and cell dimensions and the data type, and the cell at grid
+ * position (i, j, k) is stored in the file {@code i/j/k}. Each cell file
+ * starts with a header, followed by the pixel values in big-endian order, X
+ * varying fastest.
+ * <p>
+ * Cells are written to a temporary file that is then moved in place, so an
+ * interrupted write never leaves a partial cell behind. The pixel values can
+ * be compressed with gzip, as N5 does, the header staying uncompressed. A
+ * store written by this class or by N5 can be opened again with
+ * {@link #open(Path)}, and read as a lazy image with {@link #lazyImage()}.
+ */
+public class ChunkStore
+{
+
+	private static final String ATTRIBUTES_FILENAME = "attributes.json";
+
+	private final Path directory;
+
+	private final long[] dimensions;
+
+	private final int[] cellDimensions;
+
+	private final String dataType;
+
+	/**
+	 * The gzip compression level of the pixel values, 0 if they are not
+	 * compressed.
+	 */
+	private final int gzipLevel;
+
+	/**
+	 * Creates a store in the specified folder, or opens it if it exists.
+	 *
+	 * @param directory
+	 *            the folder.
+	 * @param dimensions
+	 *            the dimensions of the image.
+	 * @param cellDimensions
+	 *            the dimensions of the cells.
+	 * @param dataType
+	 *            the data type of the pixels, as in the model specs, for
+	 *            instance "float32".
+	 * @throws IOException
+	 *             if the folder cannot be created.
+	 */
+	public ChunkStore( final Path directory, final long[] dimensions, final int[] cellDimensions, final String dataType ) throws IOException
+	{
+		this( directory, dimensions, cellDimensions, dataType, 0 );
+	}
+
+	/**
+	 * Creates a store in the specified folder, with the pixel values
+	 * compressed with gzip, or opens it if it exists. An existing store keeps
+	 * the compression it was created with.
+	 *
+	 * @param directory
+	 *            the folder.
+	 * @param dimensions
+	 *            the dimensions of the image.
+	 * @param cellDimensions
+	 *            the dimensions of the cells.
+	 * @param dataType
+	 *            the data type of the pixels, as in the model specs, for
+	 *            instance "float32".
+	 * @param gzipLevel
+	 *            the gzip compression level, from 1 to 9, or 0 not to
+	 *            compress.
+	 * @throws IOException
+	 *             if the folder cannot be created.
+	 */
+	public ChunkStore( final Path directory, final long[] dimensions, final int[] cellDimensions, final String dataType, final int gzipLevel ) throws IOException
+	{
+		this.directory = directory;
+		this.dimensions = dimensions;
+		this.cellDimensions = cellDimensions;
+		this.dataType = dataType;
+		bytesPerPixel( dataType );
+		if ( gzipLevel < 0 || gzipLevel > 9 )
+			throw new IllegalArgumentException( "The gzip level must be between 0 and 9, but got " + gzipLevel + "." );
+
+		final Path attributes = directory.resolve( ATTRIBUTES_FILENAME );
+		if ( !Files.exists( attributes ) )
+		{
+			Files.createDirectories( directory );
+			final String compression = ( gzipLevel == 0 )
+					? "{\"type\":\"raw\"}"
+					: "{\"type\":\"gzip\",\"level\":" + gzipLevel + ",\"useZlib\":false}";
+			final String json = "{"
+					+ "\"dimensions\":" + Arrays.toString( dimensions ) + ","
+					+ "\"blockSize\":" + Arrays.toString( cellDimensions ) + ","
+					+ "\"dataType\":\"" + dataType + "\","
+					+ "\"compression\":" + compression
+					+ "}";
+			writeAtomically( attributes, json.getBytes( "UTF-8" ) );
+			this.gzipLevel = gzipLevel;
+		}
+		else
+		{
+			this.gzipLevel = readGzipLevel( readAttributes( directory ) );
+		}
+	}
+
+	/**
+	 * Opens an existing store, with the dimensions, cell dimensions, data type
+	 * and compression written in its attributes.
+	 *
+	 * @param directory
+	 *            the folder of the store.
+	 * @return the store.
+	 * @throws IOException
+	 *             if the attributes cannot be read, or if the compression or
+	 *             data type is not supported.
+	 */
+	public static ChunkStore open( final Path directory ) throws IOException
+	{
+		final Map< ?, ? > attributes = readAttributes( directory );
+		try
+		{
+			final long[] dimensions = ( ( List< ? > ) attributes.get( "dimensions" ) ).stream().mapToLong( x -> ( ( Number ) x ).longValue() ).toArray();
+			final int[] cellDimensions = ( ( List< ? > ) attributes.get( "blockSize" ) ).stream().mapToInt( x -> ( ( Number ) x ).intValue() ).toArray();
+			final String dataType = ( String ) attributes.get( "dataType" );
+			return new ChunkStore( directory, dimensions, cellDimensions, dataType, readGzipLevel( attributes ) );
+		}
+		catch ( final ClassCastException | NullPointerException | IllegalArgumentException e )
+		{
+			throw new IOException( "Invalid attributes in " + directory + ": " + e.getMessage(), e );
+		}
+	}
+
+	private static Map< ?, ? > readAttributes( final Path directory ) throws IOException
+	{
+		// JSON is a subset of YAML.
+		final String json = new String( Files.readAllBytes( directory.resolve( ATTRIBUTES_FILENAME ) ), StandardCharsets.UTF_8 );
+		final Object attributes = new Yaml().load( json );
+		if ( !( attributes instanceof Map ) )
+			throw new IOException( "Invalid attributes in " + directory + "." );
+		return ( Map< ?, ? > ) attributes;
+	}
+
+	private static int readGzipLevel( final Map< ?, ? > attributes ) throws IOException
+	{
+		final Object compression = attributes.get( "compression" );
+		if ( compression == null )
+			return 0;
+		final Map< ?, ? > map = ( Map< ?, ? > ) compression;
+		final Object type = map.get( "type" );
+		if ( "raw".equals( type ) )
+			return 0;
+		if ( !"gzip".equals( type ) || Boolean.TRUE.equals( map.get( "useZlib" ) ) )
+			throw new IOException( "Unsupported compression: " + compression );
+		final Object level = map.get( "level" );
+		return ( level instanceof Number && ( ( Number ) level ).intValue() > 0 )
+				? Math.min( 9, ( ( Number ) level ).intValue() )
+				: 6;
+	}
+
+	/**
+	 * Returns a lazy image of the stored cells. The cells that are not stored
+	 * are filled with zeros.
+	 *
+	 * @param <T>
+	 *            the type of the pixels.
+	 * @return the lazy image.
+	 */
+	public < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< T > lazyImage()
+	{
+		final T type = ModelSpec.toType( dataType, "store" );
+		return new ReadOnlyCachedCellImgFactory( ReadOnlyCachedCellImgOptions.options().cellDimensions( cellDimensions ) )
+				.create( dimensions, type, cell -> {
+					final long[] gridPosition = new long[ cell.numDimensions() ];
+					for ( int d = 0; d < gridPosition.length; d++ )
+						gridPosition[ d ] = cell.min( d ) / cellDimensions[ d ];
+					read( gridPosition, cell );
+				} );
+	}
+
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	public int[] getCellDimensions()
+	{
+		return cellDimensions.clone();
+	}
+
+	public String getDataType()
+	{
+		return dataType;
+	}
+
+	public int getGzipLevel()
+	{
+		return gzipLevel;
+	}
+
+	/**
+	 * Returns <code>true</code> if the cell at the specified grid position is
+	 * stored.
+	 *
+	 * @param gridPosition
+	 *            the position of the cell in the cell grid.
+	 * @return whether the cell is stored.
+	 */
+	public boolean exists( final long[] gridPosition )
+	{
+		return Files.exists( cellPath( gridPosition ) );
+	}
+
+	/**
+	 * Reads the cell at the specified grid position, if it is stored.
+	 *
+	 * @param gridPosition
+	 *            the position of the cell in the cell grid.
+	 * @param cell
+	 *            the cell to write the pixel values into.
+	 * @return <code>true</code> if the cell was stored and has been read.
+	 * @throws IOException
+	 *             if the cell file cannot be read or does not match the cell.
+	 */
+	public boolean read( final long[] gridPosition, final RandomAccessibleInterval< ? extends RealType< ? > > cell ) throws IOException
+	{
+		final byte[] bytes;
+		try
+		{
+			bytes = Files.readAllBytes( cellPath( gridPosition ) );
+		}
+		catch ( final NoSuchFileException e )
+		{
+			return false;
+		}
+		decode( ByteBuffer.wrap( decompress( bytes ) ), cell );
+		return true;
+	}
+
+	/**
+	 * Stores the specified cell at the specified grid position.
+	 *
+	 * @param gridPosition
+	 *            the position of the cell in the cell grid.
+	 * @param cell
+	 *            the cell to store.
+	 * @throws IOException
+	 *             if the cell file cannot be written.
+	 */
+	public void write( final long[] gridPosition, final RandomAccessibleInterval< ? extends RealType< ? > > cell ) throws IOException
+	{
+		writeEncoded( gridPosition, encode( cell ) );
+	}
+
+	/**
+	 * Compresses if needed and stores a cell serialized with
+	 * {@link #encode(RandomAccessibleInterval)}. This is the part of
+	 * {@link #write(long[], RandomAccessibleInterval)} that does not need the
+	 * cell anymore.
+	 */
+	void writeEncoded( final long[] gridPosition, final byte[] encoded ) throws IOException
+	{
+		final Path path = cellPath( gridPosition );
+		Files.createDirectories( path.getParent() );
+		writeAtomically( path, compress( encoded ) );
+	}
+
+	/**
+	 * Compresses the pixel values of a serialized cell, after its header.
+	 */
+	private byte[] compress( final byte[] encoded ) throws IOException
+	{
+		if ( gzipLevel == 0 )
+			return encoded;
+		final int headerLength = headerLength( encoded );
+		final ByteArrayOutputStream out = new ByteArrayOutputStream( encoded.length / 2 );
+		out.write( encoded, 0, headerLength );
+		try (final GZIPOutputStream gzip = new GZIPOutputStream( out )
+		{
+			{
+				def.setLevel( gzipLevel );
+			}
+		})
+		{
+			gzip.write( encoded, headerLength, encoded.length - headerLength );
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompresses the pixel values of a stored cell, after its header.
+	 */
+	private byte[] decompress( final byte[] stored ) throws IOException
+	{
+		if ( gzipLevel == 0 )
+			return stored;
+		final int headerLength = headerLength( stored );
+		final ByteArrayOutputStream out = new ByteArrayOutputStream( stored.length * 2 );
+		out.write( stored, 0, headerLength );
+		try (final GZIPInputStream gzip = new GZIPInputStream( new ByteArrayInputStream( stored, headerLength, stored.length - headerLength ) ))
+		{
+			final byte[] chunk = new byte[ 1 << 16 ];
+			int read;
+			while ( ( read = gzip.read( chunk ) ) > 0 )
+				out.write( chunk, 0, read );
+		}
+		return out.toByteArray();
+	}
+
+	private static int headerLength( final byte[] cell )
+	{
+		final int n = ByteBuffer.wrap( cell ).getShort( 2 );
+		return 4 + 4 * n;
+	}
+
+	/**
+	 * Returns the N5 data type string for the specified pixel type.
+	 *
+	 * @param type
+	 *            the pixel type.
+	 * @return the data type, for instance "float32".
+	 */
+	public static String dataType( final RealType< ? > type )
+	{
+		if ( type instanceof UnsignedByteType )
+			return "uint8";
+		if ( type instanceof ByteType )
+			return "int8";
+		if ( type instanceof UnsignedShortType )
+			return "uint16";
+		if ( type instanceof ShortType )
+			return "int16";
+		if ( type instanceof UnsignedIntType )
+			return "uint32";
+		if ( type instanceof IntType )
+			return "int32";
+		if ( type instanceof FloatType )
+			return "float32";
+		if ( type instanceof DoubleType )
+			return "float64";
+		throw new IllegalArgumentException( "Unsupported pixel type: " + type.getClass().getSimpleName() );
+	}
+
+	Path cellPath( final long[] gridPosition )
+	{
+		Path path = directory;
+		for ( final long p : gridPosition )
+			path = path.resolve( Long.toString( p ) );
+		return path;
+	}
+
+	/**
+	 * Serializes a cell: N5 header, then pixel values.
+	 */
+	byte[] encode( final RandomAccessibleInterval< ? extends RealType< ? > > cell )
+	{
+		final int n = cell.numDimensions();
+		final int nPixels = ( int ) Intervals.numElements( cell );
+		final ByteBuffer buffer = ByteBuffer.allocate( 4 + 4 * n + nPixels * bytesPerPixel( dataType ) );
+		buffer.putShort( ( short ) 0 ); // Default mode.
+		buffer.putShort( ( short ) n );
+		for ( int d = 0; d < n; d++ )
+			buffer.putInt( ( int ) cell.dimension( d ) );
+
+		final Object array = storageArray( cell );
+		if ( array instanceof float[] && dataType.equals( "float32" ) )
+			buffer.asFloatBuffer().put( ( float[] ) array );
+		else if ( array instanceof double[] && dataType.equals( "float64" ) )
+			buffer.asDoubleBuffer().put( ( double[] ) array );
+		else if ( array instanceof short[] && bytesPerPixel( dataType ) == 2 )
+			buffer.asShortBuffer().put( ( short[] ) array );
+		else if ( array instanceof int[] && bytesPerPixel( dataType ) == 4 && !dataType.equals( "float32" ) )
+			buffer.asIntBuffer().put( ( int[] ) array );
+		else if ( array instanceof byte[] && bytesPerPixel( dataType ) == 1 )
+			buffer.put( ( byte[] ) array );
+		else
+			for ( final RealType< ? > t : Views.flatIterable( cell ) )
+				put( buffer, t.getRealDouble() );
+		return buffer.array();
+	}
+
+	/**
+	 * Deserializes a cell written by {@link #encode(RandomAccessibleInterval)}.
+	 */
+	void decode( final ByteBuffer buffer, final RandomAccessibleInterval< ? extends RealType< ? > > cell ) throws IOException
+	{
+		buffer.getShort(); // Mode.
+		final int n = buffer.getShort();
+		if ( n != cell.numDimensions() )
+			throw new IOException( "Stored cell has " + n + " dimensions but the cell has " + cell.numDimensions() + "." );
+		for ( int d = 0; d < n; d++ )
+		{
+			final int size = buffer.getInt();
+			if ( size != cell.dimension( d ) )
+				throw new IOException( "Stored cell has size " + size + " in dimension " + d + " but the cell has size " + cell.dimension( d ) + "." );
+		}
+		if ( buffer.remaining() != Intervals.numElements( cell ) * bytesPerPixel( dataType ) )
+			throw new IOException( "Stored cell is truncated." );
+
+		final Object array = storageArray( cell );
+		if ( array instanceof float[] && dataType.equals( "float32" ) )
+			buffer.asFloatBuffer().get( ( float[] ) array );
+		else if ( array instanceof double[] && dataType.equals( "float64" ) )
+			buffer.asDoubleBuffer().get( ( double[] ) array );
+		else if ( array instanceof short[] && bytesPerPixel( dataType ) == 2 )
+			buffer.asShortBuffer().get( ( short[] ) array );
+		else if ( array instanceof int[] && bytesPerPixel( dataType ) == 4 && !dataType.equals( "float32" ) )
+			buffer.asIntBuffer().get( ( int[] ) array );
+		else if ( array instanceof byte[] && bytesPerPixel( dataType ) == 1 )
+			buffer.get( ( byte[] ) array );
+		else
+			for ( final RealType< ? > t : Views.flatIterable( cell ) )
+				t.setReal( get( buffer ) );
+	}
+
+	/**
+	 * Returns the primitive array backing the specified cell, if the cell is
+	 * a single array holding exactly its pixels, in flat order, possibly
+	 * translated with {@link Views#translate(RandomAccessibleInterval, long...)}
+	 * or {@link Views#zeroMin(RandomAccessibleInterval)}. Returns
+	 * <code>null</code> otherwise.
+	 */
+	static Object storageArray( final RandomAccessibleInterval< ? > cell )
+	{
+		final RandomAccessibleInterval< ? > img = untranslate( cell );
+		if ( !( img instanceof NativeImg ) )
+			return null;
+		final Object access = ( ( NativeImg< ?, ? > ) img ).update( null );
+		if ( !( access instanceof ArrayDataAccess ) )
+			return null;
+		final ArrayDataAccess< ? > arrayAccess = ( ArrayDataAccess< ? > ) access;
+		if ( arrayAccess.getArrayLength() != Intervals.numElements( cell ) )
+			return null;
+		return arrayAccess.getCurrentStorageArray();
+	}
+
+	/**
+	 * Returns the image that the specified view translates, if it is a pure
+	 * translation of the whole image, or the view itself otherwise.
+	 */
+	private static RandomAccessibleInterval< ? > untranslate( final RandomAccessibleInterval< ? > view )
+	{
+		if ( !( view instanceof IntervalView ) )
+			return view;
+		RandomAccessible< ? > source = ( ( IntervalView< ? > ) view ).getSource();
+		final int n = view.numDimensions();
+		final long[] translation = new long[ n ];
+		if ( source instanceof MixedTransformView )
+		{
+			final MixedTransform transform = ( ( MixedTransformView< ? > ) source ).getTransformToSource();
+			if ( transform.numSourceDimensions() != n || transform.numTargetDimensions() != n )
+				return view;
+			for ( int d = 0; d < n; d++ )
+			{
+				if ( transform.getComponentZero( d ) || transform.getComponentMapping( d ) != d || transform.getComponentInversion( d ) )
+					return view;
+				translation[ d ] = transform.getTranslation( d );
+			}
+			source = ( ( MixedTransformView< ? > ) source ).getSource();
+		}
+		if ( !( source instanceof RandomAccessibleInterval ) )
+			return view;
+		final RandomAccessibleInterval< ? > img = ( RandomAccessibleInterval< ? > ) source;
+		for ( int d = 0; d < n; d++ )
+			if ( img.min( d ) != view.min( d ) + translation[ d ] || img.dimension( d ) != view.dimension( d ) )
+				return view;
+		return img;
+	}
+
+	private void put( final ByteBuffer buffer, final double value )
+	{
+		switch ( dataType )
+		{
+		case "uint8":
+		case "int8":
+			buffer.put( ( byte ) ( long ) value );
+			break;
+		case "uint16":
+		case "int16":
+			buffer.putShort( ( short ) ( long ) value );
+			break;
+		case "uint32":
+		case "int32":
+			buffer.putInt( ( int ) ( long ) value );
+			break;
+		case "float32":
+			buffer.putFloat( ( float ) value );
+			break;
+		default:
+			buffer.putDouble( value );
+		}
+	}
+
+	private double get( final ByteBuffer buffer )
+	{
+		switch ( dataType )
+		{
+		case "uint8":
+			return buffer.get() & 0xff;
+		case "int8":
+			return buffer.get();
+		case "uint16":
+			return buffer.getShort() & 0xffff;
+		case "int16":
+			return buffer.getShort();
+		case "uint32":
+			return buffer.getInt() & 0xffffffffL;
+		case "int32":
+			return buffer.getInt();
+		case "float32":
+			return buffer.getFloat();
+		default:
+			return buffer.getDouble();
+		}
+	}
+
+	static int bytesPerPixel( final String dataType )
+	{
+		switch ( dataType )
+		{
+		case "uint8":
+		case "int8":
+			return 1;
+		case "uint16":
+		case "int16":
+			return 2;
+		case "uint32":
+		case "int32":
+		case "float32":
+			return 4;
+		case "float64":
+			return 8;
+		default:
+			throw new IllegalArgumentException( "Unsupported data type: " + dataType );
+		}
+	}
+
+	private static void writeAtomically( final Path path, final byte[] bytes ) throws IOException
+	{
+		final Path tmp = Files.createTempFile( path.getParent(), path.getFileName().toString(), ".tmp" );
+		try
+		{
+			Files.write( tmp, bytes );
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ChunkStore " + directory + " " + Util.printCoordinates( dimensions ) + " in cells of "
+				+ Arrays.stream( cellDimensions ).mapToObj( Integer::toString ).collect( Collectors.joining( "x" ) ) + " " + dataType
+				+ ( ( gzipLevel == 0 ) ? "" : " gzip" + gzipLevel );
+	}
+}
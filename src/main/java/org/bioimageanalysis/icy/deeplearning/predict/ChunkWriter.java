@@ -0,0 +1,159 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Writes the tiles of a {@link StreamingPredictor} as chunks of a
+ * {@link ChunkStore}, compressing and writing them on a pool of threads so
+ * that the prediction goes on meanwhile.
+ * <p>
+ * The pixel values of a tile are copied when it is submitted, since tiles are
+ * recycled. At most the specified number of tiles wait to be compressed and
+ * written: submitting more blocks until one is written, which bounds the
+ * memory used when the disk is slower than the model. Write errors are
+ * reported by the next call to {@link #write(long[], RandomAccessibleInterval)}
+ * or by {@link #close()}, which waits for all the chunks to be written.
+ *
+ * @param <T>
+ *            the type of the pixels in the tiles.
+ */
+public class ChunkWriter< T extends RealType< T > > implements TileSink< T >
+{
+
+	private final ChunkStore store;
+
+	private final ExecutorService executor;
+
+	private final Semaphore pending;
+
+	private final AtomicReference< IOException > error = new AtomicReference<>();
+
+	/**
+	 * Creates a writer.
+	 *
+	 * @param store
+	 *            the store to write the chunks in. Its cell dimensions must be
+	 *            the tile dimensions.
+	 * @param nThreads
+	 *            the number of threads compressing and writing chunks.
+	 * @param maxPending
+	 *            the maximal number of tiles waiting to be written.
+	 */
+	public ChunkWriter( final ChunkStore store, final int nThreads, final int maxPending )
+	{
+		this.store = store;
+		this.pending = new Semaphore( maxPending );
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool( nThreads, r -> {
+			final Thread thread = new Thread( r, "chunk-writer-" + threadCount.getAndIncrement() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+	}
+
+	/**
+	 * Creates a writer to a new store with the chunk grid aligned on the
+	 * specified tile grid, for instance the one of
+	 * {@link StreamingPredictor#getGrid()}.
+	 *
+	 * @param directory
+	 *            the folder of the store.
+	 * @param grid
+	 *            the tile grid.
+	 * @param type
+	 *            the type of the pixels in the tiles.
+	 * @param gzipLevel
+	 *            the gzip compression level, from 1 to 9, or 0 not to
+	 *            compress.
+	 * @param nThreads
+	 *            the number of threads compressing and writing chunks.
+	 * @param <T>
+	 *            the type of the pixels in the tiles.
+	 * @return a new writer.
+	 * @throws IOException
+	 *             if the store cannot be created.
+	 */
+	public static < T extends RealType< T > > ChunkWriter< T > create( final Path directory, final CellGrid grid, final T type, final int gzipLevel, final int nThreads ) throws IOException
+	{
+		final int[] cellDimensions = new int[ grid.numDimensions() ];
+		grid.cellDimensions( cellDimensions );
+		final ChunkStore store = new ChunkStore( directory, grid.getImgDimensions(), cellDimensions, ChunkStore.dataType( type ), gzipLevel );
+		return new ChunkWriter<>( store, nThreads, 2 * nThreads );
+	}
+
+	public ChunkStore getStore()
+	{
+		return store;
+	}
+
+	@Override
+	public void write( final long[] gridPosition, final RandomAccessibleInterval< T > tile ) throws IOException
+	{
+		checkError();
+		final byte[] encoded = store.encode( tile );
+		try
+		{
+			pending.acquire();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		}
+		final long[] position = gridPosition.clone();
+		executor.execute( () -> {
+			try
+			{
+				store.writeEncoded( position, encoded );
+			}
+			catch ( final IOException e )
+			{
+				error.compareAndSet( null, e );
+			}
+			finally
+			{
+				pending.release();
+			}
+		} );
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( e );
+		}
+		checkError();
+	}
+
+	private void checkError() throws IOException
+	{
+		final IOException e = error.get();
+		if ( e != null )
+			throw e;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ChunkWriter to " + store;
+	}
+}
@@ -0,0 +1,106 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A cell loader that reads the cells from a {@link ChunkStore} when they were
+ * computed in a previous session, and that stores the cells it computes.
+ * <p>
+ * The store is kept in a folder specific to the model, the input and the cell
+ * grid, see {@link #getDirectory(Path, String, String, int[])}, so that
+ * predictions made with other weights, on another input or with other cells
+ * are never mixed. Errors while reading or writing a cell are reported and
+ * the cell is computed as if it was not stored.
+ *
+ * @param <T>
+ *            the type of the pixels in the output.
+ */
+public class DiskCachedCellLoader< T extends RealType< T > & NativeType< T > > implements CellLoader< T >
+{
+
+	private final CellLoader< T > loader;
+
+	private final ChunkStore store;
+
+	private final CellGrid grid;
+
+	/**
+	 * Creates a disk-backed loader.
+	 *
+	 * @param loader
+	 *            the loader that computes the cells not stored.
+	 * @param store
+	 *            the store to read and write the cells.
+	 * @param grid
+	 *            the cell grid of the lazy output image.
+	 */
+	public DiskCachedCellLoader( final CellLoader< T > loader, final ChunkStore store, final CellGrid grid )
+	{
+		this.loader = loader;
+		this.store = store;
+		this.grid = grid;
+	}
+
+	@Override
+	public void load( final SingleCellArrayImg< T, ? > cell ) throws Exception
+	{
+		final long[] gridPosition = new long[ grid.numDimensions() ];
+		for ( int d = 0; d < gridPosition.length; d++ )
+			gridPosition[ d ] = cell.min( d ) / grid.cellDimension( d );
+
+		try
+		{
+			if ( store.read( gridPosition, cell ) )
+				return;
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not read stored cell " + Arrays.toString( gridPosition ) + ", computing it again: " + e.getMessage() );
+		}
+
+		loader.load( cell );
+
+		try
+		{
+			store.write( gridPosition, cell );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Could not store cell " + Arrays.toString( gridPosition ) + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Returns the folder in which to store the predictions of a model on an
+	 * input, for a given cell size and storage.
+	 *
+	 * @param root
+	 *            the root folder of the disk cache.
+	 * @param modelFingerprint
+	 *            the fingerprint of the model, see
+	 *            {@link Fingerprints#model(String, ModelSpec)}.
+	 * @param inputFingerprint
+	 *            the fingerprint of the input, see
+	 *            {@link Fingerprints#input(net.imglib2.RandomAccessibleInterval)}
+	 *            and {@link Fingerprints#file(java.nio.file.Path)}.
+	 * @param cellDimensions
+	 *            the dimensions of the cells.
+	 * @param storage
+	 *            how the values are stored, for instance the data type.
+	 * @return the store folder.
+	 */
+	public static Path getDirectory( final Path root, final String modelFingerprint, final String inputFingerprint, final int[] cellDimensions, final String storage )
+	{
+		final String cells = Arrays.stream( cellDimensions ).mapToObj( Integer::toString ).collect( Collectors.joining( "x" ) );
+		return root.resolve( modelFingerprint ).resolve( inputFingerprint ).resolve( cells + "-" + storage );
+	}
+}
@@ -0,0 +1,134 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Hashes that identify a model or an input, used as keys for the predictions
+ * stored on disk.
+ */
+public class Fingerprints
+{
+
+	/**
+	 * Returns a hash of the content of the rdf.yaml file and of the weights
+	 * file of a model.
+	 * 
+	 * @param modelFolder
+	 *            the folder of the model.
+	 * @param spec
+	 *            the model specs, to find the weights file.
+	 * @return the model fingerprint, as an hexadecimal string.
+	 * @throws IOException
+	 *             if one of the files cannot be read.
+	 */
+	public static String model( final String modelFolder, final ModelSpec spec ) throws IOException
+	{
+		final MessageDigest digest = newDigest();
+		update( digest, new File( modelFolder, "rdf.yaml" ) );
+		update( digest, new File( modelFolder, spec.weightSource ) );
+		return toHex( digest.digest() );
+	}
+
+	/**
+	 * Returns a hash of the dimensions, the pixel type and all the pixel
+	 * values of an input image.
+	 * <p>
+	 * Every pixel is read, so this is meant for images held in memory. Lazy
+	 * images, loaded from a file as they are read, should rather be
+	 * identified by their file, see {@link #file(Path)}.
+	 * 
+	 * @param input
+	 *            the input image.
+	 * @return the input fingerprint, as an hexadecimal string.
+	 */
+	public static < T extends RealType< T > > String input( final RandomAccessibleInterval< T > input )
+	{
+		final MessageDigest digest = newDigest();
+		digest.update( Util.printInterval( input ).getBytes( StandardCharsets.UTF_8 ) );
+		digest.update( Util.getTypeFromInterval( input ).getClass().getName().getBytes( StandardCharsets.UTF_8 ) );
+		for ( final T t : Views.flatIterable( input ) )
+			update( digest, t.getRealDouble() );
+		return toHex( digest.digest() );
+	}
+
+	/**
+	 * Returns a hash of the absolute path, the size and the modification date
+	 * of a file, to identify an image read from it without reading it.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @return the file fingerprint, as an hexadecimal string.
+	 * @throws IOException
+	 *             if the file attributes cannot be read.
+	 */
+	public static String file( final Path file ) throws IOException
+	{
+		return of( file.toAbsolutePath() + "/" + Files.size( file ) + "/" + Files.getLastModifiedTime( file ).toMillis() );
+	}
+
+	/**
+	 * Returns a hash of the specified identifier.
+	 * 
+	 * @param id
+	 *            the identifier.
+	 * @return the fingerprint, as an hexadecimal string.
+	 */
+	public static String of( final String id )
+	{
+		final MessageDigest digest = newDigest();
+		digest.update( id.getBytes( StandardCharsets.UTF_8 ) );
+		return toHex( digest.digest() );
+	}
+
+	private static void update( final MessageDigest digest, final double value )
+	{
+		final long bits = Double.doubleToLongBits( value );
+		for ( int b = 0; b < 8; b++ )
+			digest.update( ( byte ) ( bits >>> ( 8 * b ) ) );
+	}
+
+	private static void update( final MessageDigest digest, final File file ) throws IOException
+	{
+		final byte[] buffer = new byte[ 1 << 16 ];
+		try (InputStream is = new FileInputStream( file ))
+		{
+			int read;
+			while ( ( read = is.read( buffer ) ) > 0 )
+				digest.update( buffer, 0, read );
+		}
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// SHA-256 is always available.
+			throw new RuntimeException( e );
+		}
+	}
+
+	private static String toHex( final byte[] bytes )
+	{
+		final StringBuilder str = new StringBuilder();
+		for ( final byte b : bytes )
+			str.append( String.format( "%02x", b ) );
+		return str.toString();
+	}
+}
@@ -0,0 +1,276 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Remembers the model output for the model inputs already seen, so that
+ * identical tiles, such as the tiles of zero padding or of saturated regions,
+ * run through the model only once.
+ * <p>
+ * The inputs are identified by a 64-bit non-cryptographic hash of their
+ * values, together with their dimensions, their pixel type and the identity
+ * of the model, so that a memo can be shared by several predictors and
+ * models. Two different inputs with the same hash would get the same output,
+ * which is unlikely enough to be ignored for the number of tiles of an image.
+ * <p>
+ * The outputs are kept, halo included, up to the specified number of bytes,
+ * the least recently used ones being forgotten first. The number of hits and
+ * misses tells whether the memo pays off on a dataset: every miss costs a
+ * pass over the input to hash it and a copy of the output.
+ */
+public class InferenceMemo
+{
+
+	private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+
+	private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+	private static final long PRIME_3 = 0x165667B19E3779F9L;
+
+	private final long maxBytes;
+
+	/**
+	 * The outputs by input, in access order. Guarded by this.
+	 */
+	private final LinkedHashMap< Key, Img< FloatType > > outputs = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/**
+	 * Guarded by this.
+	 */
+	private long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Creates a memo.
+	 *
+	 * @param maxBytes
+	 *            the maximal number of bytes of the outputs to keep.
+	 */
+	public InferenceMemo( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the key identifying the specified model input.
+	 *
+	 * @param modelId
+	 *            the identity of the model, for instance its fingerprint.
+	 * @param modelInput
+	 *            the model input.
+	 * @return the key of the input.
+	 */
+	Key key( final String modelId, final RandomAccessibleInterval< ? extends RealType< ? > > modelInput )
+	{
+		return new Key( modelId, modelInput.dimensionsAsLongArray(), Util.getTypeFromInterval( modelInput ).getClass().getName(), hash( modelInput ) );
+	}
+
+	/**
+	 * Returns the output remembered for the specified input, or
+	 * <code>null</code> if there is none. Counts a hit or a miss.
+	 *
+	 * @param key
+	 *            the key of the input.
+	 * @return the model output, with origin at 0, halo included. It must not
+	 *         be modified.
+	 */
+	RandomAccessibleInterval< FloatType > get( final Key key )
+	{
+		final Img< FloatType > output;
+		synchronized ( this )
+		{
+			output = outputs.get( key );
+		}
+		if ( output == null )
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return output;
+	}
+
+	/**
+	 * Remembers a copy of the output of the specified input, then forgets the
+	 * least recently used outputs beyond the maximal number of bytes.
+	 *
+	 * @param key
+	 *            the key of the input.
+	 * @param output
+	 *            the model output, with origin at 0, halo included.
+	 */
+	void put( final Key key, final RandomAccessibleInterval< FloatType > output )
+	{
+		final long size = Intervals.numElements( output ) * Float.BYTES;
+		if ( size > maxBytes )
+			return;
+
+		final Img< FloatType > copy = ArrayImgs.floats( output.dimensionsAsLongArray() );
+		RealTypeConverters.copyFromTo( Views.zeroMin( output ), copy );
+		synchronized ( this )
+		{
+			final Img< FloatType > previous = outputs.put( key, copy );
+			if ( previous != null )
+				bytes -= Intervals.numElements( previous ) * Float.BYTES;
+			bytes += size;
+
+			final Iterator< Map.Entry< Key, Img< FloatType > > > eldest = outputs.entrySet().iterator();
+			while ( bytes > maxBytes && eldest.hasNext() )
+			{
+				bytes -= Intervals.numElements( eldest.next().getValue() ) * Float.BYTES;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of inputs whose output was found in the memo.
+	 *
+	 * @return the number of hits.
+	 */
+	public long hits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of inputs whose output was not found in the memo,
+	 * and that ran through the model.
+	 *
+	 * @return the number of misses.
+	 */
+	public long misses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Returns the fraction of the inputs whose output was found in the memo.
+	 *
+	 * @return the hit rate, 0 if no input was looked up.
+	 */
+	public double hitRate()
+	{
+		final long h = hits.get();
+		final long total = h + misses.get();
+		return ( total == 0 ) ? 0 : ( double ) h / total;
+	}
+
+	/**
+	 * Returns the number of bytes of the outputs kept.
+	 *
+	 * @return the number of bytes.
+	 */
+	public synchronized long bytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Forgets all the outputs. The statistics are kept.
+	 */
+	public synchronized void clear()
+	{
+		outputs.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Hashes the values of the specified image, in flat order, reading its
+	 * storage array directly if possible.
+	 */
+	private static long hash( final RandomAccessibleInterval< ? extends RealType< ? > > image )
+	{
+		long h = PRIME_3 ^ Intervals.numElements( image );
+		final Object array = ChunkStore.storageArray( image );
+		final BlockCopy.Kind kind = BlockCopy.Kind.of( image );
+		if ( array != null && kind != null )
+		{
+			final int n = ( int ) Intervals.numElements( image );
+			for ( int i = 0; i < n; i++ )
+				h = round( h, Double.doubleToLongBits( kind.get( array, i ) ) );
+		}
+		else
+		{
+			final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( image ).cursor();
+			while ( cursor.hasNext() )
+				h = round( h, Double.doubleToLongBits( cursor.next().getRealDouble() ) );
+		}
+
+		// Final avalanche.
+		h ^= h >>> 33;
+		h *= PRIME_2;
+		h ^= h >>> 29;
+		h *= PRIME_3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round( final long h, final long value )
+	{
+		return Long.rotateLeft( h ^ ( value * PRIME_2 ), 31 ) * PRIME_1;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "InferenceMemo, " + hits.get() + " hits, " + misses.get() + " misses, " + bytes() + " / " + maxBytes + " bytes";
+	}
+
+	/**
+	 * Identifies a model input.
+	 */
+	static final class Key
+	{
+
+		private final String modelId;
+
+		private final long[] dimensions;
+
+		private final String type;
+
+		private final long hash;
+
+		private Key( final String modelId, final long[] dimensions, final String type, final long hash )
+		{
+			this.modelId = modelId;
+			this.dimensions = dimensions;
+			this.type = type;
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key other = ( Key ) o;
+			return hash == other.hash
+					&& modelId.equals( other.modelId )
+					&& type.equals( other.type )
+					&& Arrays.equals( dimensions, other.dimensions );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode( hash );
+		}
+	}
+}
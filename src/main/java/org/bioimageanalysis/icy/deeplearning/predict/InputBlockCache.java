@@ -0,0 +1,68 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Caches the input of the predictors in blocks aligned on a grid, converted
+ * to the data type the model takes.
+ * <p>
+ * Neighbouring tiles overlap by their halo, so without this cache the
+ * overlapping input is read and converted again for each tile. When the input
+ * is itself lazy, for instance read from disk, this multiplies the I/O. With
+ * this cache, each block is read and converted once, when first needed, and
+ * the tiles are assembled from the cached blocks by {@link BlockCopy}. The
+ * blocks are held by soft references, so they are released under memory
+ * pressure and read again if needed.
+ */
+public class InputBlockCache
+{
+
+	/**
+	 * Returns a lazy copy of the specified input, converted to the specified
+	 * type and cached in blocks of the specified dimensions.
+	 *
+	 * @param input
+	 *            the input.
+	 * @param blockDimensions
+	 *            the dimensions of the blocks, in the input axes order.
+	 * @param type
+	 *            the type to convert the input to.
+	 * @param <I>
+	 *            the type of the pixels in the input.
+	 * @param <R>
+	 *            the type of the pixels in the cache.
+	 * @return the cached input, with the same interval as the input.
+	 * @throws IllegalArgumentException
+	 *             if the block dimensions do not match the input
+	 *             dimensionality.
+	 */
+	public static < I extends RealType< I >, R extends RealType< R > & NativeType< R > > RandomAccessibleInterval< R > wrap( final RandomAccessibleInterval< I > input, final int[] blockDimensions, final R type )
+	{
+		if ( blockDimensions.length != input.numDimensions() )
+			throw new IllegalArgumentException( "The input has " + input.numDimensions() + " dimensions but the block dimensions have " + blockDimensions.length + "." );
+
+		final RandomAccessibleInterval< I > zeroMin = Views.zeroMin( input );
+		final RandomAccessibleInterval< R > cached = new ReadOnlyCachedCellImgFactory( ReadOnlyCachedCellImgOptions.options().cellDimensions( blockDimensions ) )
+				.create( input.dimensionsAsLongArray(), type, cell -> RealTypeConverters.copyFromTo( zeroMin, cell ) );
+
+		// Keep the cell image itself when possible, so that BlockCopy reads its
+		// cells directly.
+		if ( isZeroMin( input ) )
+			return cached;
+		return Views.translate( cached, input.minAsLongArray() );
+	}
+
+	private static boolean isZeroMin( final RandomAccessibleInterval< ? > input )
+	{
+		for ( int d = 0; d < input.numDimensions(); d++ )
+			if ( input.min( d ) != 0 )
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,573 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Opens uncompressed TIFF or raw files as lazy images, memory mapped, so that
+ * inputs larger than the heap can be predicted without loading them first.
+ * <p>
+ * Opening a file only reads its header: the pixels are read when the cells
+ * of the lazy image are first accessed, with bulk reads from the mapped file
+ * into the cell arrays, one image row at a time. The cells are held by soft
+ * references. The file is mapped in regions of 1 GB, on demand, since one
+ * mapping cannot exceed 2 GB.
+ * <p>
+ * TIFF files must be uncompressed, with one sample per pixel and the same
+ * size and pixel type in all the images. They are opened as XYZ images, with
+ * one Z slice per image. For the stacks of more than 4 GB written by ImageJ,
+ * that only have their first images listed, the other images are read
+ * contiguously after the first one, as ImageJ does.
+ * <p>
+ * The file stays open while the lazy image returned by {@link #getImage()}
+ * is in use. Closing this object closes the file, after which the cells not
+ * loaded yet cannot be read anymore.
+ *
+ * @param <T>
+ *            the type of the pixels.
+ */
+public class MappedImage< T extends RealType< T > & NativeType< T > > implements Closeable
+{
+
+	private static final long REGION_BYTES = 1L << 30;
+
+	private static final int[] DEFAULT_CELL_DIMENSIONS = new int[] { 256, 256, 16 };
+
+	private final FileChannel channel;
+
+	private final long fileSize;
+
+	private final ByteOrder byteOrder;
+
+	private final long[] dimensions;
+
+	private final String dataType;
+
+	private final int bytesPerPixel;
+
+	/**
+	 * For each plane, that is each position in the dimensions after Y, the
+	 * offsets of its strips in the file.
+	 */
+	private final long[][] stripOffsets;
+
+	private final long rowsPerStrip;
+
+	private final MappedByteBuffer[] regions;
+
+	private final RandomAccessibleInterval< T > image;
+
+	private MappedImage( final FileChannel channel, final ByteOrder byteOrder, final long[] dimensions, final String dataType, final long[][] stripOffsets, final long rowsPerStrip, final int[] cellDimensions ) throws IOException
+	{
+		this.channel = channel;
+		this.fileSize = channel.size();
+		this.byteOrder = byteOrder;
+		this.dimensions = dimensions;
+		this.dataType = dataType;
+		this.bytesPerPixel = ChunkStore.bytesPerPixel( dataType );
+		this.stripOffsets = stripOffsets;
+		this.rowsPerStrip = rowsPerStrip;
+		this.regions = new MappedByteBuffer[ ( int ) ( ( fileSize + REGION_BYTES - 1 ) / REGION_BYTES ) ];
+
+		final long lastRowEnd = rowOffset( dimensions[ 1 ] - 1, stripOffsets.length - 1 ) + dimensions[ 0 ] * bytesPerPixel;
+		if ( lastRowEnd > fileSize )
+			throw new IOException( "The file is too short for an image of " + Util.printCoordinates( dimensions ) + " " + dataType + "." );
+
+		this.image = createImage( cellDimensions );
+	}
+
+	/**
+	 * Opens a raw file as a lazy image.
+	 *
+	 * @param file
+	 *            the file.
+	 * @param dimensions
+	 *            the dimensions of the image, X varying fastest in the file.
+	 * @param dataType
+	 *            the data type of the pixels, for instance "uint16".
+	 * @param byteOrder
+	 *            the byte order of the pixels.
+	 * @param headerBytes
+	 *            the number of bytes before the first pixel.
+	 * @param cellDimensions
+	 *            the dimensions of the cells of the lazy image.
+	 * @param <T>
+	 *            the type of the pixels.
+	 * @return the opened file, holding the lazy image.
+	 * @throws IOException
+	 *             if the file cannot be opened or is too short.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > MappedImage< T > openRaw( final Path file, final long[] dimensions, final String dataType, final ByteOrder byteOrder, final long headerBytes, final int[] cellDimensions ) throws IOException
+	{
+		if ( dimensions.length < 2 )
+			throw new IllegalArgumentException( "Raw images must have at least 2 dimensions." );
+		final long planeBytes = dimensions[ 0 ] * dimensions[ 1 ] * ChunkStore.bytesPerPixel( dataType );
+		final long nPlanes = Intervals.numElements( dimensions ) / ( dimensions[ 0 ] * dimensions[ 1 ] );
+		final long[][] stripOffsets = new long[ ( int ) nPlanes ][];
+		for ( int p = 0; p < nPlanes; p++ )
+			stripOffsets[ p ] = new long[] { headerBytes + p * planeBytes };
+
+		final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ );
+		try
+		{
+			return new MappedImage<>( channel, byteOrder, dimensions.clone(), dataType, stripOffsets, dimensions[ 1 ], cellDimensions );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an uncompressed TIFF file as a lazy XYZ image, with cells of
+	 * default dimensions.
+	 *
+	 * @param file
+	 *            the file.
+	 * @param <T>
+	 *            the type of the pixels.
+	 * @return the opened file, holding the lazy image.
+	 * @throws IOException
+	 *             if the file cannot be read or is not supported.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > MappedImage< T > openTiff( final Path file ) throws IOException
+	{
+		return openTiff( file, DEFAULT_CELL_DIMENSIONS );
+	}
+
+	/**
+	 * Opens an uncompressed TIFF file as a lazy XYZ image.
+	 *
+	 * @param file
+	 *            the file.
+	 * @param cellDimensions
+	 *            the dimensions of the cells of the lazy image.
+	 * @param <T>
+	 *            the type of the pixels.
+	 * @return the opened file, holding the lazy image.
+	 * @throws IOException
+	 *             if the file cannot be read or is not supported.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > MappedImage< T > openTiff( final Path file, final int[] cellDimensions ) throws IOException
+	{
+		final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ );
+		try
+		{
+			return readTiff( channel, cellDimensions );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the lazy image.
+	 *
+	 * @return the lazy image.
+	 */
+	public RandomAccessibleInterval< T > getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * Closes the file. The cells of the lazy image not loaded yet cannot be
+	 * read anymore.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		synchronized ( regions )
+		{
+			Arrays.fill( regions, null );
+		}
+		channel.close();
+	}
+
+	private RandomAccessibleInterval< T > createImage( final int[] cellDimensions )
+	{
+		final int[] cells = new int[ dimensions.length ];
+		for ( int d = 0; d < cells.length; d++ )
+			cells[ d ] = ( int ) Math.min( dimensions[ d ], ( d < cellDimensions.length ) ? cellDimensions[ d ] : 1 );
+
+		final T type = ModelSpec.toType( dataType, "image" );
+		return new ReadOnlyCachedCellImgFactory( ReadOnlyCachedCellImgOptions.options().cellDimensions( cells ) )
+				.create( dimensions, type, this::load );
+	}
+
+	/**
+	 * Reads the pixels of a cell, one row at a time.
+	 */
+	private void load( final RandomAccessibleInterval< T > cell )
+	{
+		final int n = cell.numDimensions();
+		final int width = ( int ) cell.dimension( 0 );
+		final long nRows = Intervals.numElements( cell ) / width;
+		final Object array = ChunkStore.storageArray( cell );
+		final Cursor< T > cursor = ( array == null ) ? Views.flatIterable( cell ).cursor() : null;
+
+		for ( long r = 0; r < nRows; r++ )
+		{
+			// Y and plane index of the row.
+			long rest = r;
+			final long y = cell.min( 1 ) + rest % cell.dimension( 1 );
+			rest /= cell.dimension( 1 );
+			long plane = 0;
+			long step = 1;
+			for ( int d = 2; d < n; d++ )
+			{
+				plane += ( cell.min( d ) + rest % cell.dimension( d ) ) * step;
+				rest /= cell.dimension( d );
+				step *= dimensions[ d ];
+			}
+
+			final long offset = rowOffset( y, plane ) + cell.min( 0 ) * bytesPerPixel;
+			final ByteBuffer buffer = region( offset );
+			if ( array != null )
+				read( buffer, array, ( int ) ( r * width ), width );
+			else
+				for ( int x = 0; x < width; x++ )
+					cursor.next().setReal( get( buffer ) );
+		}
+	}
+
+	private long rowOffset( final long y, final long plane )
+	{
+		return stripOffsets[ ( int ) plane ][ ( int ) ( y / rowsPerStrip ) ] + ( y % rowsPerStrip ) * dimensions[ 0 ] * bytesPerPixel;
+	}
+
+	/**
+	 * Returns a buffer positioned at the specified offset in the file, with at
+	 * least one image row after it. Regions overlap by one row.
+	 */
+	private ByteBuffer region( final long offset )
+	{
+		final int i = ( int ) ( offset / REGION_BYTES );
+		MappedByteBuffer region;
+		synchronized ( regions )
+		{
+			region = regions[ i ];
+			if ( region == null )
+			{
+				final long start = i * REGION_BYTES;
+				final long size = Math.min( fileSize - start, REGION_BYTES + dimensions[ 0 ] * bytesPerPixel );
+				try
+				{
+					region = channel.map( FileChannel.MapMode.READ_ONLY, start, size );
+				}
+				catch ( final IOException e )
+				{
+					e.printStackTrace();
+					throw new RuntimeException( e );
+				}
+				regions[ i ] = region;
+			}
+		}
+		final ByteBuffer buffer = region.duplicate().order( byteOrder );
+		buffer.position( ( int ) ( offset - i * REGION_BYTES ) );
+		return buffer;
+	}
+
+	/**
+	 * Bulk read of the specified number of pixels in the cell array.
+	 */
+	private static void read( final ByteBuffer buffer, final Object array, final int index, final int length )
+	{
+		if ( array instanceof byte[] )
+			buffer.get( ( byte[] ) array, index, length );
+		else if ( array instanceof short[] )
+			buffer.asShortBuffer().get( ( short[] ) array, index, length );
+		else if ( array instanceof int[] )
+			buffer.asIntBuffer().get( ( int[] ) array, index, length );
+		else if ( array instanceof float[] )
+			buffer.asFloatBuffer().get( ( float[] ) array, index, length );
+		else
+			buffer.asDoubleBuffer().get( ( double[] ) array, index, length );
+	}
+
+	private double get( final ByteBuffer buffer )
+	{
+		switch ( dataType )
+		{
+		case "uint8":
+			return buffer.get() & 0xff;
+		case "int8":
+			return buffer.get();
+		case "uint16":
+			return buffer.getShort() & 0xffff;
+		case "int16":
+			return buffer.getShort();
+		case "uint32":
+			return buffer.getInt() & 0xffffffffL;
+		case "int32":
+			return buffer.getInt();
+		case "float32":
+			return buffer.getFloat();
+		default:
+			return buffer.getDouble();
+		}
+	}
+
+	/*
+	 * TIFF parsing.
+	 */
+
+	private static final int TAG_IMAGE_WIDTH = 256;
+
+	private static final int TAG_IMAGE_LENGTH = 257;
+
+	private static final int TAG_BITS_PER_SAMPLE = 258;
+
+	private static final int TAG_COMPRESSION = 259;
+
+	private static final int TAG_IMAGE_DESCRIPTION = 270;
+
+	private static final int TAG_STRIP_OFFSETS = 273;
+
+	private static final int TAG_SAMPLES_PER_PIXEL = 277;
+
+	private static final int TAG_ROWS_PER_STRIP = 278;
+
+	private static final int TAG_SAMPLE_FORMAT = 339;
+
+	private static final Pattern IMAGEJ_IMAGES = Pattern.compile( "images=(\\d+)" );
+
+	/**
+	 * Reads the IFDs of a classic TIFF file.
+	 */
+	private static < T extends RealType< T > & NativeType< T > > MappedImage< T > readTiff( final FileChannel channel, final int[] cellDimensions ) throws IOException
+	{
+		final ByteBuffer header = readBytes( channel, 0, 8, ByteOrder.BIG_ENDIAN );
+		final ByteOrder order;
+		if ( header.get( 0 ) == 'I' && header.get( 1 ) == 'I' )
+			order = ByteOrder.LITTLE_ENDIAN;
+		else if ( header.get( 0 ) == 'M' && header.get( 1 ) == 'M' )
+			order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new IOException( "Not a TIFF file." );
+		header.order( order );
+		final int magic = header.getShort( 2 ) & 0xffff;
+		if ( magic == 43 )
+			throw new IOException( "BigTIFF files are not supported." );
+		if ( magic != 42 )
+			throw new IOException( "Not a TIFF file." );
+
+		long width = -1;
+		long height = -1;
+		String dataType = null;
+		long rowsPerStrip = -1;
+		int nImages = 0;
+		final List< long[] > planes = new ArrayList<>();
+		long ifd = header.getInt( 4 ) & 0xffffffffL;
+		while ( ifd != 0 )
+		{
+			final int nEntries = readBytes( channel, ifd, 2, order ).getShort() & 0xffff;
+			final ByteBuffer entries = readBytes( channel, ifd + 2, nEntries * 12 + 4, order );
+
+			long w = -1;
+			long h = -1;
+			int bits = 1;
+			int format = 1;
+			int compression = 1;
+			int samples = 1;
+			long rps = -1;
+			long[] offsets = null;
+			for ( int e = 0; e < nEntries; e++ )
+			{
+				final int p = e * 12;
+				final int tag = entries.getShort( p ) & 0xffff;
+				switch ( tag )
+				{
+				case TAG_IMAGE_WIDTH:
+					w = readValues( channel, entries, p, order )[ 0 ];
+					break;
+				case TAG_IMAGE_LENGTH:
+					h = readValues( channel, entries, p, order )[ 0 ];
+					break;
+				case TAG_BITS_PER_SAMPLE:
+					bits = ( int ) readValues( channel, entries, p, order )[ 0 ];
+					break;
+				case TAG_COMPRESSION:
+					compression = ( int ) readValues( channel, entries, p, order )[ 0 ];
+					break;
+				case TAG_SAMPLES_PER_PIXEL:
+					samples = ( int ) readValues( channel, entries, p, order )[ 0 ];
+					break;
+				case TAG_ROWS_PER_STRIP:
+					rps = readValues( channel, entries, p, order )[ 0 ];
+					break;
+				case TAG_SAMPLE_FORMAT:
+					format = ( int ) readValues( channel, entries, p, order )[ 0 ];
+					break;
+				case TAG_STRIP_OFFSETS:
+					offsets = readValues( channel, entries, p, order );
+					break;
+				case TAG_IMAGE_DESCRIPTION:
+					if ( planes.isEmpty() )
+						nImages = readImageJImages( channel, entries, p, order );
+					break;
+				default:
+					break;
+				}
+			}
+			if ( compression != 1 )
+				throw new IOException( "Only uncompressed TIFF files can be mapped, but compression is " + compression + "." );
+			if ( samples != 1 )
+				throw new IOException( "Only TIFF files with one sample per pixel are supported, but got " + samples + "." );
+			if ( offsets == null || w < 0 || h < 0 )
+				throw new IOException( "Missing TIFF tags in image " + planes.size() + "." );
+			final String t = dataType( bits, format );
+			if ( rps < 0 || rps > h )
+				rps = h;
+
+			if ( planes.isEmpty() )
+			{
+				width = w;
+				height = h;
+				dataType = t;
+				rowsPerStrip = rps;
+			}
+			else if ( w != width || h != height || !t.equals( dataType ) || rps != rowsPerStrip )
+			{
+				throw new IOException( "All the images of the TIFF file must have the same size and pixel type." );
+			}
+			planes.add( offsets );
+			ifd = entries.getInt( nEntries * 12 ) & 0xffffffffL;
+		}
+		if ( planes.isEmpty() )
+			throw new IOException( "The TIFF file has no image." );
+
+		// Large ImageJ stacks: only the first images are listed, the others
+		// follow them contiguously.
+		if ( nImages > planes.size() )
+		{
+			final long stripBytes = width * rowsPerStrip * ChunkStore.bytesPerPixel( dataType );
+			final long planeBytes = width * height * ChunkStore.bytesPerPixel( dataType );
+			for ( final long[] plane : planes )
+				if ( !isContiguous( plane, stripBytes ) )
+					throw new IOException( "Unsupported strip layout in the ImageJ TIFF file." );
+			final long first = planes.get( 0 )[ 0 ];
+			for ( int p = 0; p < planes.size(); p++ )
+				planes.set( p, new long[] { planes.get( p )[ 0 ] } );
+			for ( int p = planes.size(); p < nImages; p++ )
+				planes.add( new long[] { first + p * planeBytes } );
+			rowsPerStrip = height;
+		}
+
+		final long[] dimensions = new long[] { width, height, planes.size() };
+		return new MappedImage<>( channel, order, dimensions, dataType, planes.toArray( new long[ 0 ][] ), rowsPerStrip, cellDimensions );
+	}
+
+	private static boolean isContiguous( final long[] strips, final long stripBytes )
+	{
+		for ( int s = 1; s < strips.length; s++ )
+			if ( strips[ s ] != strips[ 0 ] + s * stripBytes )
+				return false;
+		return true;
+	}
+
+	private static String dataType( final int bits, final int format )
+	{
+		switch ( bits )
+		{
+		case 8:
+			return ( format == 2 ) ? "int8" : "uint8";
+		case 16:
+			return ( format == 2 ) ? "int16" : "uint16";
+		case 32:
+			if ( format == 3 )
+				return "float32";
+			break;
+		case 64:
+			if ( format == 3 )
+				return "float64";
+			break;
+		default:
+			break;
+		}
+		throw new IllegalArgumentException( "Unsupported TIFF pixel type: " + bits + " bits, sample format " + format + "." );
+	}
+
+	/**
+	 * Reads the values of a SHORT or LONG IFD entry.
+	 */
+	private static long[] readValues( final FileChannel channel, final ByteBuffer entries, final int p, final ByteOrder order ) throws IOException
+	{
+		final int type = entries.getShort( p + 2 ) & 0xffff;
+		final int count = entries.getInt( p + 4 );
+		final int size = ( type == 3 ) ? 2 : 4;
+		final ByteBuffer values;
+		if ( count * size <= 4 )
+		{
+			final ByteBuffer inline = entries.duplicate();
+			inline.position( p + 8 );
+			values = inline.slice().order( order );
+		}
+		else
+		{
+			values = readBytes( channel, entries.getInt( p + 8 ) & 0xffffffffL, count * size, order );
+		}
+		final long[] out = new long[ count ];
+		for ( int i = 0; i < count; i++ )
+			out[ i ] = ( size == 2 ) ? values.getShort( 2 * i ) & 0xffff : values.getInt( 4 * i ) & 0xffffffffL;
+		return out;
+	}
+
+	/**
+	 * Returns the number of images declared in the description of ImageJ
+	 * TIFF files, 0 otherwise.
+	 */
+	private static int readImageJImages( final FileChannel channel, final ByteBuffer entries, final int p, final ByteOrder order ) throws IOException
+	{
+		final int count = entries.getInt( p + 4 );
+		if ( count <= 4 )
+			return 0;
+		final ByteBuffer bytes = readBytes( channel, entries.getInt( p + 8 ) & 0xffffffffL, Math.min( count, 1 << 16 ), order );
+		final String description = new String( bytes.array(), StandardCharsets.ISO_8859_1 );
+		if ( !description.startsWith( "ImageJ" ) )
+			return 0;
+		final Matcher matcher = IMAGEJ_IMAGES.matcher( description );
+		return matcher.find() ? Integer.parseInt( matcher.group( 1 ) ) : 0;
+	}
+
+	private static ByteBuffer readBytes( final FileChannel channel, final long position, final int length, final ByteOrder order ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( length );
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer, position + buffer.position() ) < 0 )
+				throw new IOException( "Unexpected end of the TIFF file." );
+		buffer.flip();
+		return buffer.order( order );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "MappedImage " + Util.printCoordinates( dimensions ) + " " + dataType + " " + byteOrder;
+	}
+}
@@ -0,0 +1,283 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bioimageanalysis.icy.deeplearning.model.Model;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ConstantUtils;
+
+/**
+ * A pool of instances of the same model, so that several cells can be
+ * predicted in parallel.
+ * <p>
+ * Each call to the model leases one instance with {@link #lease()} and gives
+ * it back with {@link #release(Model)}. A pool with one instance serializes
+ * all the calls to the model.
+ */
+public class ModelPool implements AutoCloseable
+{
+
+	/**
+	 * System property read by the DJL PyTorch engine to set its number of
+	 * intra-op threads. It is read once per process, when the engine is
+	 * initialised, and applies to all the instances of the process. Other
+	 * engines ignore it.
+	 */
+	private static final String INTRA_OP_THREADS_PROPERTY = "ai.djl.pytorch.num_threads";
+
+	private final List< Model > models;
+
+	private final BlockingQueue< Model > available;
+
+	public ModelPool( final List< Model > models )
+	{
+		if ( models.isEmpty() )
+			throw new IllegalArgumentException( "A model pool needs at least one model instance." );
+		this.models = Collections.unmodifiableList( new ArrayList<>( models ) );
+		this.available = new ArrayBlockingQueue<>( models.size(), false, models );
+	}
+
+	/**
+	 * Creates a pool made of a single model instance.
+	 * 
+	 * @param model
+	 *            the model.
+	 * @return a new pool.
+	 */
+	public static ModelPool of( final Model model )
+	{
+		return new ModelPool( Collections.singletonList( model ) );
+	}
+
+	/**
+	 * Loads several instances of the same model with
+	 * {@link ModelCreator#fromFiles(String, String, String, boolean, boolean, String, String)},
+	 * splitting the cores of the machine evenly across the instances. See
+	 * {@link #fromFiles(int, int, String, String, String, boolean, boolean, String, String)}.
+	 * 
+	 * @param nInstances
+	 *            the number of instances to load.
+	 * @return a new pool.
+	 * @throws Exception
+	 *             if one of the instances cannot be loaded.
+	 */
+	public static ModelPool fromFiles( final int nInstances, final String modelDirectory, final String weightsFileName, final String engineDirectory, final boolean cpu, final boolean gpu, final String engine, final String engineVersion ) throws Exception
+	{
+		final int threadsPerInstance = Math.max( 1, Runtime.getRuntime().availableProcessors() / nInstances );
+		return fromFiles( nInstances, threadsPerInstance, modelDirectory, weightsFileName, engineDirectory, cpu, gpu, engine, engineVersion );
+	}
+
+	/**
+	 * Loads several instances of the same model with
+	 * {@link ModelCreator#fromFiles(String, String, String, boolean, boolean, String, String)},
+	 * each using the specified number of threads, for instance 4 instances of
+	 * 4 threads on 16 cores.
+	 * <p>
+	 * The number of threads is passed as a hint while the instances are
+	 * loaded, in the {@value #INTRA_OP_THREADS_PROPERTY} system property. Only
+	 * the DJL PyTorch engine honours it, and only if it was not initialised
+	 * before in this process: it reads the property once and applies it to
+	 * all its instances. The TensorFlow and ONNX engines ignore it, and use
+	 * their own defaults. The hint is removed once the instances are loaded,
+	 * so that models loaded afterwards are not affected, and a value set by
+	 * the user is kept. If one instance cannot be loaded, the ones already
+	 * loaded are closed.
+	 * 
+	 * @param nInstances
+	 *            the number of instances to load.
+	 * @param threadsPerInstance
+	 *            the number of threads each instance uses to run the model.
+	 * @return a new pool.
+	 * @throws Exception
+	 *             if one of the instances cannot be loaded.
+	 */
+	public static ModelPool fromFiles( final int nInstances, final int threadsPerInstance, final String modelDirectory, final String weightsFileName, final String engineDirectory, final boolean cpu, final boolean gpu, final String engine, final String engineVersion ) throws Exception
+	{
+		if ( threadsPerInstance < 1 )
+			throw new IllegalArgumentException( "Each instance needs at least one thread, but got " + threadsPerInstance + "." );
+		final boolean setHint = System.getProperty( INTRA_OP_THREADS_PROPERTY ) == null;
+		if ( setHint )
+			System.setProperty( INTRA_OP_THREADS_PROPERTY, Integer.toString( threadsPerInstance ) );
+
+		final List< Model > models = new ArrayList<>( nInstances );
+		boolean loaded = false;
+		try
+		{
+			for ( int i = 0; i < nInstances; i++ )
+				models.add( ModelCreator.fromFiles( modelDirectory, weightsFileName, engineDirectory, cpu, gpu, engine, engineVersion ) );
+			loaded = true;
+			return new ModelPool( models );
+		}
+		finally
+		{
+			if ( setHint )
+				System.clearProperty( INTRA_OP_THREADS_PROPERTY );
+			if ( !loaded )
+				for ( final Model model : models )
+					model.closeModel();
+		}
+	}
+
+	/**
+	 * Returns an instance of the model, waiting for one to be available. It
+	 * must be given back with {@link #release(Model)}.
+	 * 
+	 * @return a model instance.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public Model lease() throws InterruptedException
+	{
+		return available.take();
+	}
+
+	public void release( final Model model )
+	{
+		available.offer( model );
+	}
+
+	/**
+	 * Returns the number of instances in this pool.
+	 * 
+	 * @return the number of instances.
+	 */
+	public int size()
+	{
+		return models.size();
+	}
+
+	/**
+	 * Returns the folder the model instances were loaded from.
+	 * 
+	 * @return the model folder.
+	 */
+	public String getModelFolder()
+	{
+		return models.get( 0 ).getModelFolder();
+	}
+
+	@Override
+	public void close()
+	{
+		for ( final Model model : models )
+			model.closeModel();
+	}
+
+	/**
+	 * Loads an increasing number of instances of a model, measures the
+	 * throughput of the pool for each, and returns a pool with the number of
+	 * instances that gave the best throughput on this machine.
+	 * <p>
+	 * The throughput is measured by predicting cells of the specified size
+	 * from a blank input, with one thread per instance. The number of
+	 * instances tested are 1, 2, 4, ... up to {@code maxInstances}. Instances
+	 * not used by the returned pool are closed, and all the instances are
+	 * closed if the calibration fails.
+	 * 
+	 * @param loader
+	 *            loads one instance of the model.
+	 * @param spec
+	 *            the specs of the model.
+	 * @param outputCellDimensions
+	 *            the dimensions of the cells to predict, in the model output
+	 *            axes order.
+	 * @param maxInstances
+	 *            the maximal number of instances to test.
+	 * @param cellsPerInstance
+	 *            the number of cells each instance predicts during a
+	 *            measurement.
+	 * @return the fastest pool.
+	 * @throws Exception
+	 *             if an instance cannot be loaded or the model fails to run.
+	 */
+	public static ModelPool calibrate( final ModelLoader loader, final ModelSpec spec, final long[] outputCellDimensions, final int maxInstances, final int cellsPerInstance ) throws Exception
+	{
+		final List< Model > models = new ArrayList<>();
+		int bestN = 1;
+		boolean calibrated = false;
+		try
+		{
+			double bestThroughput = -1.;
+			for ( int n = 1; n <= maxInstances; n *= 2 )
+			{
+				while ( models.size() < n )
+					models.add( loader.load() );
+
+				final double throughput = measureThroughput( new ModelPool( models ), spec, outputCellDimensions, cellsPerInstance );
+				System.out.println( String.format( "Model pool with %d instance(s): %.2f cells/s.", n, throughput ) );
+				if ( throughput > bestThroughput )
+				{
+					bestThroughput = throughput;
+					bestN = n;
+				}
+			}
+			calibrated = true;
+		}
+		finally
+		{
+			// Close the instances not returned.
+			final int kept = calibrated ? bestN : 0;
+			for ( final Model model : models.subList( kept, models.size() ) )
+				model.closeModel();
+		}
+		return new ModelPool( models.subList( 0, bestN ) );
+	}
+
+	/**
+	 * Returns the number of cells per second the specified pool predicts.
+	 */
+	private static double measureThroughput( final ModelPool pool, final ModelSpec spec, final long[] outputCellDimensions, final int cellsPerInstance ) throws Exception
+	{
+		final PredictorOp< FloatType, FloatType > op = new PredictorOp<>( pool, ConstantUtils.constantRandomAccessible( new FloatType(), spec.inputAxes.length() ), spec );
+		final int nThreads = pool.size();
+		final ExecutorService executor = Executors.newFixedThreadPool( nThreads );
+		try
+		{
+			// Warm-up.
+			runCells( executor, op, outputCellDimensions, nThreads, 1 );
+
+			final long start = System.nanoTime();
+			runCells( executor, op, outputCellDimensions, nThreads, cellsPerInstance );
+			final long end = System.nanoTime();
+			return ( double ) nThreads * cellsPerInstance / ( ( end - start ) / 1e9 );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private static void runCells( final ExecutorService executor, final PredictorOp< FloatType, FloatType > op, final long[] outputCellDimensions, final int nThreads, final int cellsPerThread ) throws Exception
+	{
+		final List< Future< ? > > futures = new ArrayList<>( nThreads );
+		for ( int t = 0; t < nThreads; t++ )
+		{
+			futures.add( executor.submit( () -> {
+				final RandomAccessibleInterval< FloatType > cell = ArrayImgs.floats( outputCellDimensions );
+				for ( int i = 0; i < cellsPerThread; i++ )
+					op.accept( cell );
+			} ) );
+		}
+		for ( final Future< ? > future : futures )
+			future.get();
+	}
+
+	/**
+	 * Loads one instance of a model.
+	 */
+	@FunctionalInterface
+	public static interface ModelLoader
+	{
+		public Model load() throws Exception;
+	}
+}
@@ -15,8 +15,10 @@ import org.yaml.snakeyaml.Yaml;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.ShortType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -90,10 +92,27 @@ public class ModelSpec
 	 *            the type.
 	 * @return the type.
 	 */
-	@SuppressWarnings( "unchecked" )
 	public < T extends RealType< T > & NativeType< T > > T outputType()
 	{
-		switch ( outputDataType.trim().toLowerCase() )
+		return toType( outputDataType, "output" );
+	}
+
+	/**
+	 * Returns an ImgLib2 type object matching the input pixel type.
+	 * 
+	 * @param <T>
+	 *            the type.
+	 * @return the type.
+	 */
+	public < T extends RealType< T > & NativeType< T > > T inputType()
+	{
+		return toType( inputDataType, "input" );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	static < T extends RealType< T > & NativeType< T > > T toType( final String dataType, final String what )
+	{
+		switch ( dataType.trim().toLowerCase() )
 		{
 		case "uint8":
 			return ( T ) new UnsignedByteType();
@@ -103,12 +122,16 @@ public class ModelSpec
 			return ( T ) new UnsignedShortType();
 		case "int16":
 			return ( T ) new ShortType();
+		case "uint32":
+			return ( T ) new UnsignedIntType();
+		case "int32":
+			return ( T ) new IntType();
 		case "float32":
 			return ( T ) new FloatType();
 		case "float64":
 			return ( T ) new DoubleType();
 		default:
-			throw new IllegalArgumentException( "Unknown output data type: " + outputDataType );
+			throw new IllegalArgumentException( "Unknown " + what + " data type: " + dataType );
 		}
 	}
 
@@ -0,0 +1,296 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.RealComposite;
+
+/**
+ * Post-processing of the model output, applied when a cell is loaded, right
+ * after the model ran, so that the cache only holds the compact result.
+ * <p>
+ * The channels to keep are selected first, then one operation is applied
+ * across them, pixel by pixel:
+ * <ul>
+ * <li>{@link Operation#NONE}: the selected channels are stored as they are.
+ * <li>{@link Operation#SOFTMAX}: the selected channels are normalized to
+ * probabilities summing to 1.
+ * <li>{@link Operation#ARGMAX}: a single channel is stored, with the index of
+ * the selected channel of maximal value. With two boundary / foreground
+ * channels, this is a label image on 8 bits instead of 2 float channels.
+ * <li>{@link Operation#THRESHOLD}: each selected channel is stored as a 0 / 1
+ * mask, on 8 bits.
+ * </ul>
+ * The output image, and thus its cells, have as many channels as
+ * {@link #outputChannels(long)} returns.
+ */
+public class PostProcessing
+{
+
+	/**
+	 * The operation applied across the selected channels.
+	 */
+	public static enum Operation
+	{
+		NONE,
+
+		SOFTMAX,
+
+		ARGMAX,
+
+		THRESHOLD;
+	}
+
+	private final Operation operation;
+
+	private final double threshold;
+
+	private final int[] channels;
+
+	private PostProcessing( final Operation operation, final double threshold, final int[] channels )
+	{
+		this.operation = operation;
+		this.threshold = threshold;
+		this.channels = channels;
+	}
+
+	/**
+	 * Keeps only the specified channels of the model output.
+	 *
+	 * @param channels
+	 *            the indices of the channels to keep, in the model output.
+	 * @return a new post-processing.
+	 */
+	public static PostProcessing channels( final int... channels )
+	{
+		return new PostProcessing( Operation.NONE, Double.NaN, channels );
+	}
+
+	/**
+	 * Normalizes the channels of the model output with a softmax.
+	 *
+	 * @return a new post-processing.
+	 */
+	public static PostProcessing softmax()
+	{
+		return new PostProcessing( Operation.SOFTMAX, Double.NaN, null );
+	}
+
+	/**
+	 * Stores the index of the channel of maximal value.
+	 *
+	 * @return a new post-processing.
+	 */
+	public static PostProcessing argmax()
+	{
+		return new PostProcessing( Operation.ARGMAX, Double.NaN, null );
+	}
+
+	/**
+	 * Stores 1 where the model output is strictly above the specified
+	 * threshold, 0 elsewhere.
+	 *
+	 * @param threshold
+	 *            the threshold.
+	 * @return a new post-processing.
+	 */
+	public static PostProcessing threshold( final double threshold )
+	{
+		return new PostProcessing( Operation.THRESHOLD, threshold, null );
+	}
+
+	/**
+	 * Thresholds the model output at the middle of the output data range
+	 * declared in the model specs, for instance 0.5 for probabilities in
+	 * [0,1].
+	 *
+	 * @param spec
+	 *            the model specs.
+	 * @return a new post-processing.
+	 * @throws IllegalArgumentException
+	 *             if the data range is not finite.
+	 */
+	public static PostProcessing threshold( final ModelSpec spec )
+	{
+		final double[] range = spec.outputDataRange;
+		if ( range == null || range.length < 2 || !Double.isFinite( range[ 0 ] ) || !Double.isFinite( range[ 1 ] ) )
+			throw new IllegalArgumentException( "Thresholding at the data range requires a finite data range, but it is " + Arrays.toString( range ) + "." );
+		return threshold( 0.5 * ( range[ 0 ] + range[ 1 ] ) );
+	}
+
+	/**
+	 * Returns a post-processing that applies the same operation to the
+	 * specified channels of the model output only.
+	 *
+	 * @param channels
+	 *            the indices of the channels to keep, in the model output.
+	 * @return a new post-processing.
+	 */
+	public PostProcessing onChannels( final int... channels )
+	{
+		return new PostProcessing( operation, threshold, channels );
+	}
+
+	public Operation operation()
+	{
+		return operation;
+	}
+
+	/**
+	 * Returns the number of channels of the post-processed output.
+	 *
+	 * @param modelChannels
+	 *            the number of channels of the model output, 1 if the model
+	 *            output has no channel axis.
+	 * @return the number of channels.
+	 * @throws IllegalArgumentException
+	 *             if a selected channel does not exist.
+	 */
+	public long outputChannels( final long modelChannels )
+	{
+		if ( channels != null )
+			for ( final int c : channels )
+				if ( c < 0 || c >= modelChannels )
+					throw new IllegalArgumentException( "Channel " + c + " does not exist, the model output has " + modelChannels + " channels." );
+
+		if ( operation == Operation.ARGMAX )
+			return 1;
+		return ( channels == null ) ? modelChannels : channels.length;
+	}
+
+	/**
+	 * Returns the type to store the post-processed output in, or
+	 * <code>null</code> if the output is not made of labels or masks and
+	 * should be stored in the model output type.
+	 *
+	 * @param modelChannels
+	 *            the number of channels of the model output.
+	 * @param <T>
+	 *            the storage type.
+	 * @return a new {@link UnsignedByteType}, {@link UnsignedShortType}, or
+	 *         <code>null</code>.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public < T extends RealType< T > & NativeType< T > > T storageType( final long modelChannels )
+	{
+		switch ( operation )
+		{
+		case THRESHOLD:
+			return ( T ) new UnsignedByteType();
+		case ARGMAX:
+		{
+			final long nLabels = ( channels == null ) ? modelChannels : channels.length;
+			if ( nLabels <= 256 )
+				return ( T ) new UnsignedByteType();
+			return ( T ) new UnsignedShortType();
+		}
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Post-processes the model output and writes the result in the specified
+	 * cell.
+	 *
+	 * @param output
+	 *            the model output, halo removed, with origin at 0.
+	 * @param channelAxis
+	 *            the channel axis in the model output and in the cell, or -1
+	 *            if there is none.
+	 * @param cell
+	 *            the output cell, with origin at 0.
+	 * @param quantization
+	 *            the mapping to the stored values, or <code>null</code> to
+	 *            store the post-processed values.
+	 * @param <F>
+	 *            the type of the pixels in the model output.
+	 * @param <O>
+	 *            the type of the pixels in the cell.
+	 */
+	public < F extends RealType< F >, O extends RealType< O > > void apply( final RandomAccessibleInterval< F > output, final int channelAxis, final RandomAccessibleInterval< O > cell, final Quantization quantization )
+	{
+		final int modelChannels = ( channelAxis < 0 ) ? 1 : ( int ) output.dimension( channelAxis );
+		final int[] selected = ( channels != null )
+				? channels
+				: IntStream.range( 0, modelChannels ).toArray();
+		final int nIn = selected.length;
+
+		final RandomAccessibleInterval< RealComposite< F > > in = Views.collapseReal( channelsLast( output, channelAxis ) );
+		final RandomAccessibleInterval< RealComposite< O > > out = Views.collapseReal( channelsLast( cell, channelAxis ) );
+		LoopBuilder.setImages( in, out ).forEachPixel( ( i, o ) -> {
+			switch ( operation )
+			{
+			case ARGMAX:
+			{
+				int best = 0;
+				double max = Double.NEGATIVE_INFINITY;
+				for ( int k = 0; k < nIn; k++ )
+				{
+					final double v = i.get( selected[ k ] ).getRealDouble();
+					if ( v > max )
+					{
+						max = v;
+						best = k;
+					}
+				}
+				o.get( 0 ).setReal( best );
+				break;
+			}
+			case SOFTMAX:
+			{
+				double max = Double.NEGATIVE_INFINITY;
+				for ( int k = 0; k < nIn; k++ )
+					max = Math.max( max, i.get( selected[ k ] ).getRealDouble() );
+				double sum = 0;
+				for ( int k = 0; k < nIn; k++ )
+					sum += Math.exp( i.get( selected[ k ] ).getRealDouble() - max );
+				for ( int k = 0; k < nIn; k++ )
+					set( o.get( k ), Math.exp( i.get( selected[ k ] ).getRealDouble() - max ) / sum, quantization );
+				break;
+			}
+			case THRESHOLD:
+				for ( int k = 0; k < nIn; k++ )
+					o.get( k ).setReal( ( i.get( selected[ k ] ).getRealDouble() > threshold ) ? 1 : 0 );
+				break;
+			case NONE:
+			default:
+				for ( int k = 0; k < nIn; k++ )
+					set( o.get( k ), i.get( selected[ k ] ).getRealDouble(), quantization );
+				break;
+			}
+		} );
+	}
+
+	private static void set( final RealType< ? > o, final double value, final Quantization quantization )
+	{
+		o.setReal( ( quantization == null ) ? value : quantization.quantize( value ) );
+	}
+
+	/**
+	 * Returns a view of the specified image with the channels along the last
+	 * axis, adding a singleton channel axis if there is none.
+	 */
+	private static < T > RandomAccessibleInterval< T > channelsLast( final RandomAccessibleInterval< T > image, final int channelAxis )
+	{
+		if ( channelAxis < 0 )
+			return Views.addDimension( image, 0, 0 );
+		return Views.moveAxis( image, channelAxis, image.numDimensions() - 1 );
+	}
+
+	@Override
+	public String toString()
+	{
+		final String op = ( operation == Operation.THRESHOLD )
+				? "threshold" + threshold
+				: operation.name().toLowerCase();
+		return ( channels == null ) ? op : op + Arrays.toString( channels ).replace( " ", "" );
+	}
+}
@@ -1,63 +1,587 @@
 package org.bioimageanalysis.icy.deeplearning.predict;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 import org.bioimageanalysis.icy.deeplearning.model.Model;
+import org.bioimageanalysis.icy.deeplearning.predict.SuperTileCellLoader.CellInserter;
 
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
-import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.LoaderCache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 public class PredictionCachedCellImgCreator
 {
 	public static List< RandomAccessibleInterval< FloatType > > createLazyXYZOutputImages( final RandomAccessibleInterval< FloatType > xyzInput, final Model model, final ModelSpec modelSpec )
+	{
+		return createLazyXYZOutputImages( xyzInput, model, modelSpec, PredictionCachedCellImgOptions.options() );
+	}
+
+	public static List< RandomAccessibleInterval< FloatType > > createLazyXYZOutputImages( final RandomAccessibleInterval< FloatType > xyzInput, final Model model, final ModelSpec modelSpec, final PredictionCachedCellImgOptions options )
+	{
+		return createLazyXYZOutputImages( xyzInput, ModelPool.of( model ), modelSpec, options );
+	}
+
+	/**
+	 * Creates lazy output images, one per output channel, as float views.
+	 * <p>
+	 * The cells are cached in the output data type declared in the model
+	 * specs, or quantized on 8 or 16 bits if requested with
+	 * {@link PredictionCachedCellImgOptions#quantize(int)}, and converted to
+	 * float when read.
+	 */
+	public static List< RandomAccessibleInterval< FloatType > > createLazyXYZOutputImages( final RandomAccessibleInterval< FloatType > xyzInput, final ModelPool models, final ModelSpec modelSpec, final PredictionCachedCellImgOptions options )
+	{
+		return createLazyXYZFloatOutputImages( xyzInput, models, modelSpec, options );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static < T extends RealType< T > & NativeType< T > > List< RandomAccessibleInterval< FloatType > > createLazyXYZFloatOutputImages( final RandomAccessibleInterval< FloatType > xyzInput, final ModelPool models, final ModelSpec modelSpec, final PredictionCachedCellImgOptions options )
+	{
+		final Quantization quantization;
+		final T type;
+		final PostProcessing postProcessing = options.postProcessing();
+		final T labelType;
+		if ( postProcessing != null )
+			labelType = postProcessing.storageType( getModelChannels( modelSpec ) );
+		else
+			labelType = null;
+		if ( labelType != null )
+		{
+			if ( options.quantizationBits() > 0 )
+				throw new IllegalArgumentException( "Labels and masks from " + postProcessing + " cannot be quantized." );
+			quantization = null;
+			type = labelType;
+		}
+		else if ( options.quantizationBits() > 0 )
+		{
+			quantization = Quantization.fromDataRange( modelSpec, options.quantizationBits() );
+			type = ( T ) Quantization.storageType( options.quantizationBits() );
+		}
+		else
+		{
+			quantization = null;
+			type = ( T ) modelSpec.outputType();
+		}
+
+		final List< RandomAccessibleInterval< T > > stored = createLazyXYZOutputImages( xyzInput, models, modelSpec, options, type, quantization );
+		if ( quantization == null && type instanceof FloatType )
+			return ( List< RandomAccessibleInterval< FloatType > > ) ( List< ? > ) stored;
+
+		final List< RandomAccessibleInterval< FloatType > > xyzOutputs = new ArrayList<>();
+		for ( final RandomAccessibleInterval< T > channel : stored )
+		{
+			if ( quantization == null )
+				xyzOutputs.add( RealTypeConverters.convert( channel, new FloatType() ) );
+			else
+				xyzOutputs.add( quantization.dequantize( channel ) );
+		}
+		return xyzOutputs;
+	}
+
+	/**
+	 * Creates lazy output images, one per output channel, with the cells
+	 * stored in the specified type.
+	 *
+	 * @param xyzInput
+	 *            the input image.
+	 * @param models
+	 *            the pool of model instances.
+	 * @param modelSpec
+	 *            the model specs.
+	 * @param options
+	 *            the options.
+	 * @param type
+	 *            the type to store the model output in.
+	 * @param quantization
+	 *            how to map the model output values to the stored values, or
+	 *            <code>null</code> to store the model output values.
+	 * @param <T>
+	 *            the storage type.
+	 * @return the lazy output images, with the stored values.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > List< RandomAccessibleInterval< T > > createLazyXYZOutputImages( final RandomAccessibleInterval< FloatType > xyzInput, final ModelPool models, final ModelSpec modelSpec, final PredictionCachedCellImgOptions options, final T type, final Quantization quantization )
 	{
 		// create model input image
 		final RandomAccessibleInterval< FloatType > modelInput = AxesMatcher.matchAxes( modelSpec.inputAxes, "xyz", xyzInput );
 
 		// instantiate predictor with the input image
-		final PredictorOp< FloatType, FloatType > predictorOp = new PredictorOp<>( model, Views.extendMirrorSingle( modelInput ), modelSpec );
+		final Consumer< RandomAccessibleInterval< T > > batchedOp = createPredictor( xyzInput, models, modelInput, modelSpec, options, quantization );
+		final Consumer< RandomAccessibleInterval< T > > cellLoader = ( options.scheduler() != null )
+				? options.scheduler().wrap( batchedOp, modelSpec.outputAxes )
+				: batchedOp;
 
 		// create model output image
-		//
-		final String outputDataType = modelSpec.outputDataType;
-		// TODO: Use the outputDataType
-		final FloatType type = new FloatType();
+		final CellGrid grid = createOutputGrid( xyzInput, modelInput, models, modelSpec, options );
+		final BiFunction< CellGrid, String, ChunkStore > stores = createChunkStores( xyzInput, models, modelSpec, type, quantization, options );
+		if ( options.channelCells() != null )
+			return createChannelCachedImages( stores, modelSpec, options, type, cellLoader, grid );
+
+		final ChunkStore store = stores.apply( grid, "" );
+		final SuperTileCellLoader< T > superTileLoader;
+		final CellLoader< T > loader;
+		if ( options.cellsPerSuperTile() > 1 )
+		{
+			final int[] cellsPerSuperTile = new int[ grid.numDimensions() ];
+			for ( int d = 0; d < cellsPerSuperTile.length; d++ )
+				cellsPerSuperTile[ d ] = ( "xyz".indexOf( modelSpec.outputAxes.charAt( d ) ) < 0 ) ? 1 : options.cellsPerSuperTile();
+			superTileLoader = new SuperTileCellLoader<>( cellLoader, grid, cellsPerSuperTile, type );
+			loader = superTileLoader;
+		}
+		else
+		{
+			superTileLoader = null;
+			loader = cellLoader::accept;
+		}
+
+		final Consumer< CellInserter< T > > inserterTarget;
+		if ( superTileLoader != null )
+			inserterTarget = superTileLoader::setCellInserter;
+		else
+			inserterTarget = null;
+
+		final CachedCellImg< T, ? > modelOutput;
+		final CellPrefetcher prefetcher = createPrefetcher( grid, modelSpec.outputAxes, options );
+		if ( prefetcher != null )
+		{
+			modelOutput = createCachedCellImg( grid, type, cell -> {
+				prefetcher.requested( cell );
+				loader.load( cell );
+			}, inserterTarget, store, options );
+			prefetcher.setCache( modelOutput.getCache() );
+		}
+		else
+		{
+			modelOutput = createCachedCellImg( grid, type, loader, inserterTarget, store, options );
+		}
+
+		final RandomAccessibleInterval< T > cxyzOutput = AxesMatcher.matchAxes( "cxyz", modelSpec.outputAxes, modelOutput );
+
+		final ArrayList< RandomAccessibleInterval< T > > xyzOutputs = new ArrayList<>();
+		for ( int c = 0; c < cxyzOutput.dimension( 0 ); c++ )
+		{
+			xyzOutputs.add( Views.hyperSlice( cxyzOutput , 0, c ) );
+		}
+
+		return xyzOutputs;
+	}
+
+	/**
+	 * Creates one lazy XYZ image per selected channel, each cached in its own
+	 * xyz-contiguous cells. See {@link ChannelSplitCellLoader}.
+	 */
+	private static < T extends RealType< T > & NativeType< T > > List< RandomAccessibleInterval< T > > createChannelCachedImages(
+			final BiFunction< CellGrid, String, ChunkStore > stores,
+			final ModelSpec modelSpec,
+			final PredictionCachedCellImgOptions options,
+			final T type,
+			final Consumer< RandomAccessibleInterval< T > > cellLoader,
+			final CellGrid outputGrid )
+	{
+		if ( options.cellsPerSuperTile() > 1 )
+			throw new IllegalArgumentException( "Super tiles cannot be combined with per-channel cells." );
+
+		final long[] outputCellDimensions = new long[ outputGrid.numDimensions() ];
+		outputGrid.cellDimensions( outputCellDimensions );
+		final Interval cxyz = AxesMatcher.matchInterval( "cxyz", modelSpec.outputAxes, new FinalInterval( outputGrid.getImgDimensions() ) );
+		final Interval cxyzCell = AxesMatcher.matchInterval( "cxyz", modelSpec.outputAxes, new FinalInterval( outputCellDimensions ) );
+		final long[] xyzDimensions = new long[ 3 ];
+		final int[] xyzCellDimensions = new int[ 3 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			xyzDimensions[ d ] = cxyz.dimension( d + 1 );
+			xyzCellDimensions[ d ] = ( int ) cxyzCell.dimension( d + 1 );
+		}
+		final CellGrid grid = new CellGrid( xyzDimensions, xyzCellDimensions );
+
+		final long nChannels = cxyz.dimension( 0 );
+		final int[] channels = ( options.channelCells().length == 0 )
+				? IntStream.range( 0, ( int ) nChannels ).toArray()
+				: options.channelCells();
+		for ( final int c : channels )
+			if ( c < 0 || c >= nChannels )
+				throw new IllegalArgumentException( "Channel " + c + " does not exist, the model output has " + nChannels + " channels." );
+
+		final ChannelSplitCellLoader< T > splitter = new ChannelSplitCellLoader<>( cellLoader, modelSpec.outputAxes, grid, nChannels, channels, type );
+		final CellPrefetcher prefetcher = createPrefetcher( grid, "xyz", options );
+		final List< RandomAccessibleInterval< T > > xyzOutputs = new ArrayList<>();
+		for ( int i = 0; i < channels.length; i++ )
+		{
+			final int index = i;
+			final ChunkStore store = stores.apply( grid, "-c" + channels[ i ] );
+			final CellLoader< T > channelLoader = splitter.forChannel( i );
+			final CellLoader< T > loader;
+			if ( prefetcher != null )
+				loader = cell -> {
+					prefetcher.requested( cell );
+					channelLoader.load( cell );
+				};
+			else
+				loader = channelLoader;
+
+			final CachedCellImg< T, ? > output = createCachedCellImg( grid, type, loader, inserter -> splitter.setCellInserter( index, inserter ), store, options );
+			if ( i == 0 && prefetcher != null )
+				prefetcher.setCache( output.getCache() );
+			xyzOutputs.add( output );
+		}
+		return xyzOutputs;
+	}
+
+	/**
+	 * Creates the prefetcher for the specified cell grid, or returns
+	 * <code>null</code> if prefetching is not enabled.
+	 */
+	private static CellPrefetcher createPrefetcher( final CellGrid grid, final String axes, final PredictionCachedCellImgOptions options )
+	{
+		if ( options.prefetchBudget() <= 0 )
+			return null;
+		if ( options.scheduler() == null )
+			throw new IllegalArgumentException( "Prefetching requires a scheduler." );
+		return new CellPrefetcher( grid, axes, options.scheduler(), options.prefetchBudget() );
+	}
+
+	/**
+	 * Creates a runner that predicts the whole output, tile after tile, with
+	 * at most the specified number of tiles in memory, and writes the tiles
+	 * to a {@link TileSink}. The tiles are the cells of the lazy output
+	 * images with the same options, in the model output axes order, and are
+	 * visited in the {@link PredictionCachedCellImgOptions#traversalOrder()}.
+	 *
+	 * @param xyzInput
+	 *            the input image.
+	 * @param models
+	 *            the pool of model instances.
+	 * @param modelSpec
+	 *            the model specs.
+	 * @param options
+	 *            the options.
+	 * @param type
+	 *            the type to store the model output in.
+	 * @param quantization
+	 *            how to map the model output values to the stored values, or
+	 *            <code>null</code> to store the model output values.
+	 * @param tilesInFlight
+	 *            the maximal number of tiles being read, predicted or written
+	 *            at the same time.
+	 * @param <T>
+	 *            the storage type.
+	 * @return a new streaming predictor.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > StreamingPredictor< T > createStreamingPredictor( final RandomAccessibleInterval< FloatType > xyzInput, final ModelPool models, final ModelSpec modelSpec, final PredictionCachedCellImgOptions options, final T type, final Quantization quantization, final int tilesInFlight )
+	{
+		final RandomAccessibleInterval< FloatType > modelInput = AxesMatcher.matchAxes( modelSpec.inputAxes, "xyz", xyzInput );
+		final Consumer< RandomAccessibleInterval< T > > predictor = createPredictor( xyzInput, models, modelInput, modelSpec, options, quantization );
+		final CellGrid grid = createOutputGrid( xyzInput, modelInput, models, modelSpec, options );
+		return new StreamingPredictor<>( predictor, grid, type, tilesInFlight, options.traversalOrder() );
+	}
 
+	/**
+	 * Returns the cell grid of the model output, in the model output axes
+	 * order.
+	 */
+	private static CellGrid createOutputGrid( final RandomAccessibleInterval< FloatType > xyzInput, final RandomAccessibleInterval< FloatType > modelInput, final ModelPool models, final ModelSpec modelSpec, final PredictionCachedCellImgOptions options )
+	{
 		final ShapeMath shapeMath = new ShapeMath( modelSpec );
 
-		// TODO remove the long mapping if we change it in the modelSpec
-		final int[] outputCellDimensions =	Arrays.stream(
-						shapeMath.getOutputDimensions(
-								Arrays.stream( modelSpec.inputShapeMin )
-										.mapToLong( x -> x ).toArray() )
-				).mapToInt( x -> ( int ) x ).toArray();
+		final int[] outputCellDimensions = Arrays.stream( getOutputCellDimensions( xyzInput, modelInput, models, modelSpec, shapeMath, options ) )
+				.mapToInt( x -> ( int ) x ).toArray();
 
 		final long[] outputInterval = shapeMath.getOutputDimensions( modelInput.dimensionsAsLongArray() );
 
+		// The post-processing may change the number of channels.
+		final int channelAxis = modelSpec.outputAxes.indexOf( 'c' );
+		if ( options.postProcessing() != null && channelAxis >= 0 )
+		{
+			outputInterval[ channelAxis ] = options.postProcessing().outputChannels( outputInterval[ channelAxis ] );
+			outputCellDimensions[ channelAxis ] = ( int ) outputInterval[ channelAxis ];
+		}
+
 		System.out.println("Output image dimensions: " + Arrays.toString( outputInterval ) );
 		System.out.println("Output cell dimensions: " + Arrays.toString( outputCellDimensions ) );
 
-		final RandomAccessibleInterval< FloatType > modelOutput =
-				new ReadOnlyCachedCellImgFactory().create(
-						outputInterval,
-						type,
-						predictorOp::accept,
-						ReadOnlyCachedCellImgOptions.options().cellDimensions( outputCellDimensions )
-				);
+		return new CellGrid( outputInterval, outputCellDimensions );
+	}
 
-		final RandomAccessibleInterval< FloatType > cxyzOutput = AxesMatcher.matchAxes( "cxyz", modelSpec.outputAxes, modelOutput );
+	/**
+	 * Creates the predictor filling the output cells, reading the input
+	 * through an {@link InputBlockCache}, preloading the input chunks of
+	 * chunk-aligned tiles, remembering the outputs in an
+	 * {@link InferenceMemo}, batching and skipping the cells if requested.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private static < R extends RealType< R > & NativeType< R >, T extends RealType< T > & NativeType< T > > Consumer< RandomAccessibleInterval< T > > createPredictor(
+			final RandomAccessibleInterval< FloatType > xyzInput,
+			final ModelPool models,
+			final RandomAccessibleInterval< FloatType > modelInput,
+			final ModelSpec modelSpec,
+			final PredictionCachedCellImgOptions options,
+			final Quantization quantization )
+	{
+		final RandomAccessibleInterval< R > input;
+		if ( options.inputBlockDimensions() != null )
+		{
+			final R inputType;
+			if ( modelSpec.inputDataType == null )
+				inputType = ( R ) new FloatType();
+			else
+				inputType = ( R ) modelSpec.inputType();
+			input = InputBlockCache.wrap( modelInput, options.inputBlockDimensions(), inputType );
+		}
+		else
+		{
+			input = ( RandomAccessibleInterval< R > ) modelInput;
+		}
 
-		final ArrayList< RandomAccessibleInterval< FloatType > > xyzOutputs = new ArrayList<>();
-		for ( int c = 0; c < cxyzOutput.dimension( 0 ); c++ )
+		final PredictorOp< R, T > predictorOp = new PredictorOp<>( models, input, options.paddingMode(), options.paddingValue(), modelSpec, quantization, options.postProcessing() );
+		if ( options.maxTileInputDimensions() != null )
 		{
-			xyzOutputs.add( Views.hyperSlice( cxyzOutput , 0, c ) );
+			final AbstractCellImg< ?, ?, ?, ? > chunks = ChunkPreloader.findCellImg( xyzInput );
+			if ( chunks instanceof CachedCellImg )
+				predictorOp.setChunkPreloader( new ChunkPreloader( ( CachedCellImg< ?, ? > ) chunks, modelSpec.inputAxes ) );
+		}
+		if ( options.memo() != null )
+		{
+			try
+			{
+				predictorOp.setMemo( options.memo(), Fingerprints.model( models.getModelFolder(), modelSpec ) );
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+				throw new RuntimeException( e );
+			}
 		}
+		final Consumer< RandomAccessibleInterval< T > > op;
+		if ( options.batchSize() > 1 )
+			op = new BatchedPredictorOp< R, T >( predictorOp, options.batchSize(), options.batchWindowMillis() );
+		else
+			op = predictorOp;
 
-		return xyzOutputs;
+		// The criterion reads the same, possibly cached, input as the model.
+		final TileSkipper.Criterion criterion = createSkipCriterion( input, modelSpec, options );
+		if ( criterion == null )
+			return op;
+		return new TileSkipper<>( op, modelSpec, criterion, options.skippedCellValue() );
+	}
+
+	/**
+	 * Creates the criterion deciding which cells to skip, or returns
+	 * <code>null</code> if no cell is skipped.
+	 */
+	private static TileSkipper.Criterion createSkipCriterion( final RandomAccessibleInterval< ? extends RealType< ? > > modelInput, final ModelSpec modelSpec, final PredictionCachedCellImgOptions options )
+	{
+		TileSkipper.Criterion criterion = null;
+		if ( options.skipMask() != null )
+		{
+			final RandomAccessibleInterval< ? extends RealType< ? > > mask = AxesMatcher.matchAxes( modelSpec.inputAxes, "xyz", options.skipMask() );
+			for ( int d = 0; d < mask.numDimensions(); d++ )
+				if ( "xyz".indexOf( modelSpec.inputAxes.charAt( d ) ) >= 0 && mask.dimension( d ) != modelInput.dimension( d ) )
+					throw new IllegalArgumentException( "The skip mask " + Util.printInterval( options.skipMask() ) + " does not have the dimensions of the input." );
+			criterion = TileSkipper.Criterion.mask( mask );
+		}
+		if ( options.skipMaxVariance() >= 0 )
+		{
+			final TileSkipper.Criterion lowVariance = TileSkipper.Criterion.lowVariance( modelInput, options.skipMaxVariance() );
+			criterion = ( criterion == null ) ? lowVariance : criterion.or( lowVariance );
+		}
+		return criterion;
+	}
+
+	/**
+	 * Returns a suffix identifying the padding of the border tiles, for the
+	 * disk cache, or an empty string for the default mirror padding.
+	 */
+	private static String getPaddingSuffix( final PredictionCachedCellImgOptions options )
+	{
+		switch ( options.paddingMode() )
+		{
+		case MIRROR_SINGLE:
+			return "";
+		case CONSTANT:
+			return "-pad-constant-" + options.paddingValue();
+		default:
+			return "-pad-" + options.paddingMode().toString().toLowerCase();
+		}
+	}
+
+	/**
+	 * Returns a suffix identifying the cells skipping settings, for the disk
+	 * cache, or an empty string if no cell is skipped.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private static String getSkipSuffix( final PredictionCachedCellImgOptions options )
+	{
+		if ( options.skipMask() == null && options.skipMaxVariance() < 0 )
+			return "";
+		final String mask = ( options.skipMask() == null ) ? "none" : Fingerprints.input( ( RandomAccessibleInterval ) options.skipMask() );
+		return "-sparse-" + Fingerprints.of( mask + "/" + options.skipMaxVariance() + "/" + options.skippedCellValue() ).substring( 0, 8 );
+	}
+
+	/**
+	 * Returns the number of channels of the model output, 1 if it has no
+	 * channel axis.
+	 */
+	private static long getModelChannels( final ModelSpec modelSpec )
+	{
+		final int channelAxis = modelSpec.outputAxes.indexOf( 'c' );
+		if ( channelAxis < 0 )
+			return 1;
+		return new ShapeMath( modelSpec ).getOutputDimensions(
+				Arrays.stream( modelSpec.inputShapeMin )
+						.mapToLong( x -> x ).toArray() )[ channelAxis ];
+	}
+
+	private static long[] getOutputCellDimensions( final RandomAccessibleInterval< FloatType > xyzInput, final RandomAccessibleInterval< FloatType > modelInput, final ModelPool models, final ModelSpec modelSpec, final ShapeMath shapeMath, final PredictionCachedCellImgOptions options )
+	{
+		if ( options.cellDimensions() != null )
+			return options.cellDimensions();
+
+		if ( options.maxTileInputDimensions() != null )
+		{
+			final long[] xyzChunkDimensions;
+			if ( options.inputChunkDimensions() != null )
+			{
+				xyzChunkDimensions = Arrays.stream( options.inputChunkDimensions() ).mapToLong( x -> x ).toArray();
+			}
+			else
+			{
+				final AbstractCellImg< ?, ?, ?, ? > chunks = ChunkPreloader.findCellImg( xyzInput );
+				if ( chunks == null )
+					throw new IllegalArgumentException( "Chunk-aligned tiles require the chunk dimensions, or an input that is a cell image or a converted view of one." );
+				final CellGrid inputGrid = chunks.getCellGrid();
+				xyzChunkDimensions = new long[ inputGrid.numDimensions() ];
+				for ( int d = 0; d < xyzChunkDimensions.length; d++ )
+					xyzChunkDimensions[ d ] = inputGrid.cellDimension( d );
+			}
+			final long[] chunkDimensions = AxesMatcher.matchInterval( modelSpec.inputAxes, "xyz", new FinalInterval( xyzChunkDimensions ) ).dimensionsAsLongArray();
+			return new TilePlanner( modelSpec, modelInput.dimensionsAsLongArray(), chunkDimensions ).getCellDimensions( options.maxTileInputDimensions() );
+		}
+
+		if ( options.autotuneMaxBytes() > 0 )
+			return new TileSizeAutotuner( models, modelSpec ).getCellDimensions( options.autotuneMaxBytes() );
+
+		return shapeMath.getOutputDimensions(
+				Arrays.stream( modelSpec.inputShapeMin )
+						.mapToLong( x -> x ).toArray() );
+	}
+
+	/**
+	 * Returns a function opening the on-disk store of the predicted cells for
+	 * a cell grid and a suffix, in a folder specific to the model, the input,
+	 * the cell grid and the storage. The function returns <code>null</code> if
+	 * the disk cache is not enabled. The model and input fingerprints are
+	 * computed once, here.
+	 */
+	private static BiFunction< CellGrid, String, ChunkStore > createChunkStores( final RandomAccessibleInterval< FloatType > xyzInput, final ModelPool models, final ModelSpec modelSpec, final RealType< ? > type, final Quantization quantization, final PredictionCachedCellImgOptions options )
+	{
+		if ( options.diskCacheRoot() == null )
+			return ( grid, suffix ) -> null;
+
+		final String inputFingerprint;
+		if ( options.inputId() != null )
+			inputFingerprint = Fingerprints.of( options.inputId() );
+		else if ( isInMemory( xyzInput ) )
+			inputFingerprint = Fingerprints.input( xyzInput );
+		else
+			throw new IllegalArgumentException( "The disk cache of a lazy input requires an input id, for instance Fingerprints.file( path )." );
+
+		final String modelFingerprint;
+		try
+		{
+			modelFingerprint = Fingerprints.model( models.getModelFolder(), modelSpec );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+		final String dataType = ChunkStore.dataType( type );
+		final String postProcessing = ( options.postProcessing() == null ) ? "" : "-" + options.postProcessing();
+		final String storage = ( ( quantization == null ) ? dataType : dataType + "-" + quantization ) + postProcessing + getPaddingSuffix( options ) + getSkipSuffix( options );
+		return ( grid, suffix ) -> {
+			final int[] cellDimensions = new int[ grid.numDimensions() ];
+			grid.cellDimensions( cellDimensions );
+			try
+			{
+				return new ChunkStore(
+						DiskCachedCellLoader.getDirectory( options.diskCacheRoot(), modelFingerprint, inputFingerprint, cellDimensions, storage + suffix ),
+						grid.getImgDimensions(),
+						cellDimensions,
+						dataType );
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+				throw new RuntimeException( e );
+			}
+		};
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified image is held in memory, so
+	 * that reading all its pixels is cheap.
+	 */
+	private static boolean isInMemory( final RandomAccessibleInterval< ? > image )
+	{
+		return image instanceof ArrayImg || image instanceof PlanarImg || image instanceof CellImg;
+	}
+
+	/**
+	 * Creates a read-only cached cell image with volatile accesses, as
+	 * {@code ReadOnlyCachedCellImgFactory} does, but keeps a handle on the
+	 * cache so that the loader, if it fills several cells at once, can insert
+	 * cells in it. The inserter is passed to the specified target.
+	 * If a store is specified, the cells are read from it when present and
+	 * written to it when computed. If a memory budget is set, the cells are
+	 * kept in a {@link BudgetedLoaderCache} instead of a soft reference cache.
+	 */
+	private static < T extends RealType< T > & NativeType< T >, A extends ArrayDataAccess< A > > CachedCellImg< T, A > createCachedCellImg( final CellGrid grid, final T type, final CellLoader< T > loader, final Consumer< CellInserter< T > > inserterTarget, final ChunkStore store, final PredictionCachedCellImgOptions options )
+	{
+		final Set< AccessFlags > flags = AccessFlags.setOf( AccessFlags.VOLATILE );
+		final A accessType = ArrayDataAccessFactory.get( type, flags );
+		final LoaderCache< Long, Cell< A > > loaderCache;
+		if ( options.memoryBudgetBytes() > 0 )
+			loaderCache = new BudgetedLoaderCache< A >( options.memoryBudgetBytes(), options.evictionPolicy(), options.spillBytes(), accessType );
+		else
+			loaderCache = new SoftRefLoaderCache<>();
+		final CellLoader< T > storedLoader = ( store == null ) ? loader : new DiskCachedCellLoader< T >( loader, store, grid );
+		final CacheLoader< Long, Cell< A > > cacheLoader = LoadedCellCacheLoader.get( grid, storedLoader, type, flags );
+		final Cache< Long, Cell< A > > cache = loaderCache.withLoader( cacheLoader );
+		if ( inserterTarget != null )
+		{
+			inserterTarget.accept( ( index, cellLoader ) -> {
+				final CellLoader< T > l = ( store == null ) ? cellLoader : new DiskCachedCellLoader< T >( cellLoader, store, grid );
+				loaderCache.get( index, LoadedCellCacheLoader.get( grid, l, type, flags ) );
+			} );
+		}
+		return new CachedCellImg<>( grid, type, cache, accessType );
 	}
 }
@@ -0,0 +1,565 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.nio.file.Path;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Options for the lazy prediction images created by
+ * {@link PredictionCachedCellImgCreator}.
+ * <p>
+ * Use {@link #options()} to get the default options, then chain the setters
+ * to modify them.
+ */
+public class PredictionCachedCellImgOptions
+{
+
+	private int batchSize = 1;
+
+	private long batchWindowMillis = 0;
+
+	private long[] cellDimensions = null;
+
+	private long autotuneMaxBytes = -1;
+
+	private int cellsPerSuperTile = 1;
+
+	private CellScheduler scheduler = null;
+
+	private int prefetchBudget = 0;
+
+	private Path diskCacheRoot = null;
+
+	private String inputId = null;
+
+	private long memoryBudgetBytes = 0;
+
+	private BudgetedLoaderCache.EvictionPolicy evictionPolicy = BudgetedLoaderCache.EvictionPolicy.LRU;
+
+	private long spillBytes = 0;
+
+	private int quantizationBits = 0;
+
+	private BoundaryPadding.Mode paddingMode = BoundaryPadding.Mode.MIRROR_SINGLE;
+
+	private double paddingValue = 0;
+
+	private int[] channelCells = null;
+
+	private PostProcessing postProcessing = null;
+
+	private int[] inputBlockDimensions = null;
+
+	private long[] maxTileInputDimensions = null;
+
+	private int[] inputChunkDimensions = null;
+
+	private TraversalOrder traversalOrder = TraversalOrder.RASTER;
+
+	private RandomAccessibleInterval< ? extends RealType< ? > > skipMask = null;
+
+	private double skipMaxVariance = -1;
+
+	private double skippedCellValue = Double.NaN;
+
+	private InferenceMemo memo = null;
+
+	public static PredictionCachedCellImgOptions options()
+	{
+		return new PredictionCachedCellImgOptions();
+	}
+
+	/**
+	 * Stacks the cells requested concurrently along the 'b' axis, so that they
+	 * are processed with a single call to the model. See
+	 * {@link BatchedPredictorOp}.
+	 * 
+	 * @param batchSize
+	 *            the maximal number of cells to process in one model call. 1
+	 *            disables batching.
+	 * @param windowMillis
+	 *            the maximal time to wait for other cells to be requested, in
+	 *            milliseconds.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions batch( final int batchSize, final long windowMillis )
+	{
+		this.batchSize = batchSize;
+		this.batchWindowMillis = windowMillis;
+		return this;
+	}
+
+	/**
+	 * Sets the dimensions of the cells of the lazy output image, in the model
+	 * output axes order. By default, the cells are the output of the smallest
+	 * tile the model accepts.
+	 * 
+	 * @param cellDimensions
+	 *            the cell dimensions.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions cellDimensions( final long... cellDimensions )
+	{
+		this.cellDimensions = cellDimensions;
+		return this;
+	}
+
+	/**
+	 * Uses the cell dimensions that give the best throughput on this machine,
+	 * as found by {@link TileSizeAutotuner}. Ignored if the cell dimensions
+	 * are set explicitly.
+	 * 
+	 * @param maxBytes
+	 *            the maximal number of bytes the buffers of one tile can use.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions autotuneCellDimensions( final long maxBytes )
+	{
+		this.autotuneMaxBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Predicts blocks of neighbouring cells with one model call, so that they
+	 * do not each pay for the halo. All the cells of a block are stored in
+	 * the cache when one of them is requested. See {@link SuperTileCellLoader}.
+	 * 
+	 * @param cellsPerSuperTile
+	 *            the number of cells in a block along each of the X, Y and Z
+	 *            axes. 1 disables super tiles.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions superTiles( final int cellsPerSuperTile )
+	{
+		this.cellsPerSuperTile = cellsPerSuperTile;
+		return this;
+	}
+
+	/**
+	 * Predicts the cells through the specified scheduler, so that the cells
+	 * visible in the viewer are predicted first and that requests not wanted
+	 * anymore can be dropped. The same scheduler can be shared by several
+	 * lazy images.
+	 * 
+	 * @param scheduler
+	 *            the scheduler, or <code>null</code> to predict the cells in
+	 *            the loader threads.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions scheduler( final CellScheduler scheduler )
+	{
+		this.scheduler = scheduler;
+		return this;
+	}
+
+	/**
+	 * When the scheduler is idle, speculatively predicts the cells next to the
+	 * ones recently requested, in the direction the user is moving. Requires
+	 * a scheduler that allows speculative predictions, and runs a thread per
+	 * lazy image until the scheduler is shut down. See {@link CellPrefetcher}
+	 * and {@link CellScheduler#shutdown()}.
+	 * 
+	 * @param budget
+	 *            the maximal number of cells to prefetch after each request.
+	 *            0 disables prefetching.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions prefetch( final int budget )
+	{
+		this.prefetchBudget = budget;
+		return this;
+	}
+
+	/**
+	 * Stores the predicted cells on disk, and reads them back instead of
+	 * running the model when the same model is run on the same input with the
+	 * same cells, even in another session. See {@link DiskCachedCellLoader}.
+	 * 
+	 * @param root
+	 *            the root folder of the disk cache, or <code>null</code> to
+	 *            disable it.
+	 * @param inputId
+	 *            an identifier of the input, for instance
+	 *            {@link Fingerprints#file(java.nio.file.Path)} of its file.
+	 *            May only be <code>null</code> if the input is held in
+	 *            memory, as an {@code ArrayImg}, a {@code PlanarImg} or a
+	 *            {@code CellImg}: a fingerprint is then computed from all the
+	 *            input pixels.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions diskCache( final Path root, final String inputId )
+	{
+		this.diskCacheRoot = root;
+		this.inputId = inputId;
+		return this;
+	}
+
+	/**
+	 * Keeps the predicted cells in memory up to a byte budget, instead of
+	 * using soft references. See {@link BudgetedLoaderCache}.
+	 * 
+	 * @param budgetBytes
+	 *            the maximal size of the cells held in memory, in bytes. 0
+	 *            uses soft references.
+	 * @param policy
+	 *            which cells to evict first when the budget is exceeded.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions memoryBudget( final long budgetBytes, final BudgetedLoaderCache.EvictionPolicy policy )
+	{
+		this.memoryBudgetBytes = budgetBytes;
+		this.evictionPolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Compresses the cells evicted from the memory budget and keeps them, up
+	 * to a second byte budget, instead of discarding them. Ignored if no
+	 * memory budget is set.
+	 * 
+	 * @param spillBytes
+	 *            the maximal size of the compressed cells, in bytes. 0
+	 *            discards evicted cells.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions spill( final long spillBytes )
+	{
+		this.spillBytes = spillBytes;
+		return this;
+	}
+
+	/**
+	 * Stores the predicted cells on 8 or 16 bits, mapping the output data
+	 * range declared in the model specs to the full range of an unsigned
+	 * integer type. The lazy output images convert the values back when read.
+	 * See {@link Quantization}.
+	 * 
+	 * @param bits
+	 *            8 or 16, or 0 to store the cells in the output data type of
+	 *            the model.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions quantize( final int bits )
+	{
+		this.quantizationBits = bits;
+		return this;
+	}
+
+	/**
+	 * Sets how to fill the input pixels outside of the image, for the tiles
+	 * crossing its borders. By default, the image is mirrored. See
+	 * {@link BoundaryPadding}.
+	 * 
+	 * @param mode
+	 *            the padding mode.
+	 * @param value
+	 *            the value for {@link BoundaryPadding.Mode#CONSTANT}.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions padding( final BoundaryPadding.Mode mode, final double value )
+	{
+		this.paddingMode = mode;
+		this.paddingValue = value;
+		return this;
+	}
+
+	/**
+	 * Caches each output channel in its own XYZ cells instead of in the model
+	 * output layout, so that viewers read each channel sequentially in
+	 * memory. The prediction is transposed once, when the cells are loaded.
+	 * Only the specified channels are cached and returned. See
+	 * {@link ChannelSplitCellLoader}.
+	 * 
+	 * @param channels
+	 *            the channels to cache. All the channels if empty.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions channelCells( final int... channels )
+	{
+		this.channelCells = channels;
+		return this;
+	}
+
+	/**
+	 * Post-processes the model output when the cells are loaded, so that the
+	 * cache only holds the result: for instance an 8-bit label image with
+	 * {@link PostProcessing#argmax()} instead of all the float channels. The
+	 * lazy output images are then the post-processed channels.
+	 * 
+	 * @param postProcessing
+	 *            the post-processing, or <code>null</code> to cache the model
+	 *            output.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions postProcessing( final PostProcessing postProcessing )
+	{
+		this.postProcessing = postProcessing;
+		return this;
+	}
+
+	/**
+	 * Caches the model input in blocks of the specified dimensions, converted
+	 * to the model input data type, so that the input shared by overlapping
+	 * tiles is read and converted once. See {@link InputBlockCache}.
+	 * 
+	 * @param blockDimensions
+	 *            the dimensions of the blocks, in the model input axes order,
+	 *            or <code>null</code> to read the input for each tile.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions inputBlocks( final int... blockDimensions )
+	{
+		this.inputBlockDimensions = blockDimensions;
+		return this;
+	}
+
+	/**
+	 * Chooses the cell dimensions so that the input tiles cut as few storage
+	 * chunks of the input as possible, when the input is a cell image read
+	 * from a chunked store, or a converted view of one. See
+	 * {@link TilePlanner}. Takes precedence over the autotuning, but not over
+	 * explicit cell dimensions. If the input is read from a cached cell
+	 * image, the chunks covered by each tile are loaded in parallel, see
+	 * {@link ChunkPreloader}.
+	 * 
+	 * @param maxInputDimensions
+	 *            the maximal dimensions of the input tiles, halo included, in
+	 *            the model input axes order.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions chunkAlignedTiles( final long... maxInputDimensions )
+	{
+		return chunkAlignedTiles( null, maxInputDimensions );
+	}
+
+	/**
+	 * Chooses the cell dimensions so that the input tiles cut as few of the
+	 * specified storage chunks as possible. See {@link TilePlanner}.
+	 * 
+	 * @param xyzChunkDimensions
+	 *            the dimensions of the storage chunks of the XYZ input, or
+	 *            <code>null</code> to use the cell dimensions of the input,
+	 *            if it is a cell image or a converted view of one.
+	 * @param maxInputDimensions
+	 *            the maximal dimensions of the input tiles, halo included, in
+	 *            the model input axes order.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions chunkAlignedTiles( final int[] xyzChunkDimensions, final long[] maxInputDimensions )
+	{
+		this.inputChunkDimensions = xyzChunkDimensions;
+		this.maxTileInputDimensions = maxInputDimensions;
+		return this;
+	}
+
+	/**
+	 * Sets the order in which whole image runs visit the tiles, see
+	 * {@link PredictionCachedCellImgCreator#createStreamingPredictor}. By
+	 * default, the tiles are visited in raster order.
+	 * 
+	 * @param order
+	 *            the traversal order.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions traversalOrder( final TraversalOrder order )
+	{
+		this.traversalOrder = order;
+		return this;
+	}
+
+	/**
+	 * Skips the cells whose input, halo included, is zero everywhere in the
+	 * specified mask, instead of running them through the model. See
+	 * {@link TileSkipper}.
+	 * 
+	 * @param xyzMask
+	 *            the foreground mask, with the dimensions of the XYZ input.
+	 *            Non-zero values are foreground.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions skipCellsOutsideMask( final RandomAccessibleInterval< ? extends RealType< ? > > xyzMask )
+	{
+		this.skipMask = xyzMask;
+		return this;
+	}
+
+	/**
+	 * Skips the cells whose input, halo included, has a variance of at most
+	 * the specified value, instead of running them through the model. The
+	 * variance is computed on the values the predictor reads, that is in the
+	 * model input type when input blocks are cached, see
+	 * {@link #inputBlocks(int...)}. See {@link TileSkipper}.
+	 * 
+	 * @param maxVariance
+	 *            the largest variance of the background. 0 only skips the
+	 *            cells whose input values are all equal, a negative value
+	 *            disables this criterion.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions skipLowVarianceCells( final double maxVariance )
+	{
+		this.skipMaxVariance = maxVariance;
+		return this;
+	}
+
+	/**
+	 * Fills the skipped cells with the specified value. By default, they
+	 * receive a copy of the prediction of the first skipped cell of the same
+	 * size and background value: the mean of the input for
+	 * {@link #skipLowVarianceCells(double)}, 0 for all the cells outside the
+	 * mask of {@link #skipCellsOutsideMask(RandomAccessibleInterval)}.
+	 * 
+	 * @param value
+	 *            the value of the skipped cells, in the stored units, or NaN
+	 *            to copy the prediction of a skipped cell with the same
+	 *            background.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions skippedCellValue( final double value )
+	{
+		this.skippedCellValue = value;
+		return this;
+	}
+
+	/**
+	 * Reuses the model output of identical input tiles, as remembered in the
+	 * specified memo, instead of running the model again. The memo can be
+	 * shared by several images and models, and tells how often it was hit.
+	 * See {@link InferenceMemo}.
+	 * 
+	 * @param memo
+	 *            the memo, or <code>null</code> to always run the model.
+	 * @return these options.
+	 */
+	public PredictionCachedCellImgOptions memo( final InferenceMemo memo )
+	{
+		this.memo = memo;
+		return this;
+	}
+
+	public int batchSize()
+	{
+		return batchSize;
+	}
+
+	public long batchWindowMillis()
+	{
+		return batchWindowMillis;
+	}
+
+	public long[] cellDimensions()
+	{
+		return cellDimensions;
+	}
+
+	public long autotuneMaxBytes()
+	{
+		return autotuneMaxBytes;
+	}
+
+	public int cellsPerSuperTile()
+	{
+		return cellsPerSuperTile;
+	}
+
+	public CellScheduler scheduler()
+	{
+		return scheduler;
+	}
+
+	public int prefetchBudget()
+	{
+		return prefetchBudget;
+	}
+
+	public Path diskCacheRoot()
+	{
+		return diskCacheRoot;
+	}
+
+	public String inputId()
+	{
+		return inputId;
+	}
+
+	public long memoryBudgetBytes()
+	{
+		return memoryBudgetBytes;
+	}
+
+	public BudgetedLoaderCache.EvictionPolicy evictionPolicy()
+	{
+		return evictionPolicy;
+	}
+
+	public long spillBytes()
+	{
+		return spillBytes;
+	}
+
+	public int quantizationBits()
+	{
+		return quantizationBits;
+	}
+
+	public BoundaryPadding.Mode paddingMode()
+	{
+		return paddingMode;
+	}
+
+	public double paddingValue()
+	{
+		return paddingValue;
+	}
+
+	public int[] channelCells()
+	{
+		return channelCells;
+	}
+
+	public PostProcessing postProcessing()
+	{
+		return postProcessing;
+	}
+
+	public int[] inputBlockDimensions()
+	{
+		return inputBlockDimensions;
+	}
+
+	public long[] maxTileInputDimensions()
+	{
+		return maxTileInputDimensions;
+	}
+
+	public int[] inputChunkDimensions()
+	{
+		return inputChunkDimensions;
+	}
+
+	public TraversalOrder traversalOrder()
+	{
+		return traversalOrder;
+	}
+
+	public RandomAccessibleInterval< ? extends RealType< ? > > skipMask()
+	{
+		return skipMask;
+	}
+
+	public double skipMaxVariance()
+	{
+		return skipMaxVariance;
+	}
+
+	public double skippedCellValue()
+	{
+		return skippedCellValue;
+	}
+
+	public InferenceMemo memo()
+	{
+		return memo;
+	}
+}
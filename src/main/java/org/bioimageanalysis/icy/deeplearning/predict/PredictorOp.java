@@ -1,6 +1,7 @@
 package org.bioimageanalysis.icy.deeplearning.predict;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
 
@@ -11,11 +12,16 @@ import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
@@ -29,7 +35,7 @@ import net.imglib2.view.Views;
 public class PredictorOp< I extends RealType< I > & NativeType< I >, O extends RealType< O > & NativeType< O > > implements Consumer< RandomAccessibleInterval< O > >
 {
 
-	private final Model model;
+	private final ModelPool models;
 
 	private final RandomAccessible< I > input;
 
@@ -37,43 +43,423 @@ public class PredictorOp< I extends RealType< I > & NativeType< I >, O extends R
 
 	private final ModelSpec spec;
 
+	/**
+	 * How to map the model output to the output cells, or <code>null</code>
+	 * to copy the values.
+	 */
+	private final Quantization quantization;
+
+	/**
+	 * Applied to the model output before it is written in the output cells,
+	 * or <code>null</code> to write the model output.
+	 */
+	private final PostProcessing postProcessing;
+
+	/**
+	 * Fast path to read the tiles crossing the input borders, or
+	 * <code>null</code> if the input was extended by the caller.
+	 */
+	private final BoundaryPadding padding;
+
+	/**
+	 * Prepares the input of the model, in the data type of the model specs.
+	 */
+	private final InputTensors< ? > inputTensors;
+
+	/**
+	 * Buffers to receive the model output, when it cannot be written directly
+	 * in the output cell.
+	 */
+	private final BufferPool< FloatType > outputBuffers = new BufferPool<>( new FloatType() );
+
+	/**
+	 * Remembers the model output of the inputs already seen, or
+	 * <code>null</code> to always run the model.
+	 */
+	private InferenceMemo memo;
+
+	/**
+	 * The identity of the model in the memo.
+	 */
+	private String modelId;
+
+	/**
+	 * Loads the input chunks of a tile in parallel before it is copied, or
+	 * <code>null</code>.
+	 */
+	private ChunkPreloader preloader;
+
 	public PredictorOp( final Model model, final RandomAccessible< I > input, final ModelSpec spec )
 	{
-		this.model = model;
+		this( ModelPool.of( model ), input, spec );
+	}
+
+	/**
+	 * Creates a predictor that runs each cell on one instance of the model
+	 * leased from the specified pool, so that as many cells as there are
+	 * instances can be predicted in parallel.
+	 * 
+	 * @param models
+	 *            the pool of model instances.
+	 * @param input
+	 *            the input, laid out as specified by the model input axes.
+	 * @param spec
+	 *            the model specs.
+	 */
+	public PredictorOp( final ModelPool models, final RandomAccessible< I > input, final ModelSpec spec )
+	{
+		this( models, input, spec, null );
+	}
+
+	/**
+	 * Creates a predictor that stores the model output quantized in the
+	 * output cells.
+	 * 
+	 * @param models
+	 *            the pool of model instances.
+	 * @param input
+	 *            the input, laid out as specified by the model input axes.
+	 * @param spec
+	 *            the model specs.
+	 * @param quantization
+	 *            the mapping from the model output values to the values
+	 *            stored in the output cells, or <code>null</code> to store the
+	 *            model output values.
+	 */
+	public PredictorOp( final ModelPool models, final RandomAccessible< I > input, final ModelSpec spec, final Quantization quantization )
+	{
+		this( models, input, spec, quantization, null, null );
+	}
+
+	/**
+	 * Creates a predictor on an input that is not extended. The tiles
+	 * crossing the input borders are padded with block copies, see
+	 * {@link BoundaryPadding}.
+	 * 
+	 * @param models
+	 *            the pool of model instances.
+	 * @param input
+	 *            the input, laid out as specified by the model input axes.
+	 * @param paddingMode
+	 *            how to fill the pixels outside of the input.
+	 * @param paddingValue
+	 *            the value for {@link BoundaryPadding.Mode#CONSTANT}.
+	 * @param spec
+	 *            the model specs.
+	 * @param quantization
+	 *            the mapping from the model output values to the values
+	 *            stored in the output cells, or <code>null</code> to store the
+	 *            model output values.
+	 */
+	public PredictorOp( final ModelPool models, final RandomAccessibleInterval< I > input, final BoundaryPadding.Mode paddingMode, final double paddingValue, final ModelSpec spec, final Quantization quantization )
+	{
+		this( models, input, paddingMode, paddingValue, spec, quantization, null );
+	}
+
+	/**
+	 * Creates a predictor on an input that is not extended, that
+	 * post-processes the model output before writing it in the output cells.
+	 * The output cells must then have the number of channels given by
+	 * {@link PostProcessing#outputChannels(long)}.
+	 * 
+	 * @param models
+	 *            the pool of model instances.
+	 * @param input
+	 *            the input, laid out as specified by the model input axes.
+	 * @param paddingMode
+	 *            how to fill the pixels outside of the input.
+	 * @param paddingValue
+	 *            the value for {@link BoundaryPadding.Mode#CONSTANT}.
+	 * @param spec
+	 *            the model specs.
+	 * @param quantization
+	 *            the mapping from the post-processed values to the values
+	 *            stored in the output cells, or <code>null</code> to store the
+	 *            post-processed values.
+	 * @param postProcessing
+	 *            the post-processing, or <code>null</code> to store the model
+	 *            output.
+	 */
+	public PredictorOp( final ModelPool models, final RandomAccessibleInterval< I > input, final BoundaryPadding.Mode paddingMode, final double paddingValue, final ModelSpec spec, final Quantization quantization, final PostProcessing postProcessing )
+	{
+		this( models, input, new BoundaryPadding( input, paddingMode, paddingValue ), spec, quantization, postProcessing );
+	}
+
+	private PredictorOp( final ModelPool models, final RandomAccessibleInterval< I > input, final BoundaryPadding padding, final ModelSpec spec, final Quantization quantization, final PostProcessing postProcessing )
+	{
+		this( models, padding.extend( input ), spec, quantization, postProcessing, padding );
+	}
+
+	private PredictorOp( final ModelPool models, final RandomAccessible< I > input, final ModelSpec spec, final Quantization quantization, final PostProcessing postProcessing, final BoundaryPadding padding )
+	{
+		this.models = models;
+		this.padding = padding;
 		this.input = input;
 		this.spec = spec;
+		this.quantization = quantization;
+		this.postProcessing = postProcessing;
 		this.shapeMath = new ShapeMath( spec );
+		this.inputTensors = createInputTensors();
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private < R extends RealType< R > & NativeType< R > > InputTensors< R > createInputTensors()
+	{
+		final R type;
+		if ( spec.inputDataType == null )
+			type = ( R ) new FloatType();
+		else
+			type = ( R ) spec.inputType();
+		return new InputTensors< R >( type );
+	}
+
+	/**
+	 * Reuses the model output of identical inputs, as remembered in the
+	 * specified memo, instead of running the model again. Must be called
+	 * before the predictor is used. Only applies to the cells predicted one
+	 * at a time, not to the batches of {@link BatchedPredictorOp}.
+	 * 
+	 * @param memo
+	 *            the memo, possibly shared with other predictors, or
+	 *            <code>null</code> to always run the model.
+	 * @param modelId
+	 *            the identity of the model, for instance its fingerprint
+	 *            from {@link Fingerprints#model(String, ModelSpec)}.
+	 */
+	public void setMemo( final InferenceMemo memo, final String modelId )
+	{
+		this.memo = memo;
+		this.modelId = modelId;
+	}
+
+	/**
+	 * Loads the storage chunks covered by each input tile in parallel before
+	 * copying the tile. Must be called before the predictor is used.
+	 * 
+	 * @param preloader
+	 *            the preloader of the input chunks, or <code>null</code> to
+	 *            let the copy load them.
+	 */
+	public void setChunkPreloader( final ChunkPreloader preloader )
+	{
+		this.preloader = preloader;
 	}
 
 	@Override
 	public void accept( final RandomAccessibleInterval< O > cell )
 	{
-		// Inputs.
+		predict( inputTensors, getValidInputInterval( cell ), cell );
+	}
+
+	private < R extends RealType< R > & NativeType< R > > void predict( final InputTensors< R > tensors, final Interval validInputInterval, final RandomAccessibleInterval< O > cell )
+	{
+		// Inputs, read directly if possible.
+		final RandomAccessibleInterval< R > view = tensors.view( validInputInterval );
+		if ( view != null )
+		{
+			predict( view, validInputInterval, cell );
+			return;
+		}
+
+		// Otherwise copied in a recycled buffer.
+		final Img< R > buffer = tensors.acquire( validInputInterval.dimensionsAsLongArray() );
+		try
+		{
+			tensors.copy( validInputInterval, buffer, new long[ buffer.numDimensions() ] );
+			predict( buffer, validInputInterval, cell );
+		}
+		finally
+		{
+			tensors.release( buffer );
+		}
+	}
+
+	private < R extends RealType< R > & NativeType< R > > void predict( final RandomAccessibleInterval< R > modelInput, final Interval validInputInterval, final RandomAccessibleInterval< O > cell )
+	{
+		// Reuse the output of an identical input if possible.
+		final InferenceMemo.Key key;
+		if ( memo != null )
+		{
+			key = memo.key( modelId, modelInput );
+			final RandomAccessibleInterval< FloatType > remembered = memo.get( key );
+			if ( remembered != null )
+			{
+				writeOutput( remembered, cell );
+				return;
+			}
+		}
+		else
+		{
+			key = null;
+		}
+
+		// Without halo, the model can directly write in the cell.
+		final long[] outputDimensions = shapeMath.getOutputDimensions( validInputInterval.dimensionsAsLongArray() );
+		if ( canWriteInPlace( outputDimensions, cell ) )
+		{
+			@SuppressWarnings( "unchecked" )
+			final RandomAccessibleInterval< FloatType > target = ( RandomAccessibleInterval< FloatType > ) Views.zeroMin( cell );
+			final RandomAccessibleInterval< FloatType > output = runModel( modelInput, target );
+			if ( key != null )
+				memo.put( key, output );
+			// Some engines ignore the data we pass them.
+			if ( output != target )
+				writeOutput( output, cell );
+			return;
+		}
+
+		// Otherwise use a recycled buffer, then crop and copy.
+		final Img< FloatType > buffer = outputBuffers.acquire( outputDimensions );
+		try
+		{
+			final RandomAccessibleInterval< FloatType > output = runModel( modelInput, buffer );
+			if ( key != null )
+				memo.put( key, output );
+			writeOutput( output, cell );
+		}
+		finally
+		{
+			outputBuffers.release( buffer );
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the model output can be written directly in
+	 * the specified cell: the model has no halo, the output has exactly the
+	 * size of the cell and the cell is made of floats, not quantized nor
+	 * post-processed.
+	 */
+	private boolean canWriteInPlace( final long[] outputDimensions, final RandomAccessibleInterval< O > cell )
+	{
+		return quantization == null
+				&& postProcessing == null
+				&& !shapeMath.hasHalo()
+				&& Arrays.equals( outputDimensions, cell.dimensionsAsLongArray() )
+				&& Util.getTypeFromInterval( cell ) instanceof FloatType;
+	}
+
+	public ModelSpec getModelSpec()
+	{
+		return spec;
+	}
+
+	/**
+	 * Returns the interval in the input that the model has to process to
+	 * produce the specified output cell, halo included.
+	 * 
+	 * @param cell
+	 *            the output cell.
+	 * @return the input interval, with a size valid for the model.
+	 */
+	Interval getValidInputInterval( final Interval cell )
+	{
 		final Interval addOutputHalo = shapeMath.addOutputHalo( cell );
-		final Interval validInputInterval = shapeMath.getValidInputInterval( addOutputHalo );
+		return shapeMath.getValidInputInterval( addOutputHalo );
+	}
+
+	/**
+	 * Runs the model once on the inputs of several cells, stacked along the
+	 * specified axis.
+	 * 
+	 * @param inputIntervals
+	 *            the intervals to read in the input, all with the same
+	 *            dimensions and a size of 1 along the stacking axis.
+	 * @param axis
+	 *            the axis to stack the inputs along.
+	 * @return the output of the model, with origin at 0, halo included.
+	 */
+	RandomAccessibleInterval< FloatType > runModelOnStack( final List< Interval > inputIntervals, final int axis )
+	{
+		return runModelOnStack( inputTensors, inputIntervals, axis );
+	}
+
+	private < R extends RealType< R > & NativeType< R > > RandomAccessibleInterval< FloatType > runModelOnStack( final InputTensors< R > tensors, final List< Interval > inputIntervals, final int axis )
+	{
+		final long[] stackDimensions = inputIntervals.get( 0 ).dimensionsAsLongArray();
+		stackDimensions[ axis ] = inputIntervals.size();
+		final Img< R > stack = tensors.acquire( stackDimensions );
+		try
+		{
+			for ( int i = 0; i < inputIntervals.size(); i++ )
+			{
+				final long[] offset = new long[ stackDimensions.length ];
+				offset[ axis ] = i;
+				tensors.copy( inputIntervals.get( i ), stack, offset );
+			}
+			return runModel( stack );
+		}
+		finally
+		{
+			tensors.release( stack );
+		}
+	}
+
+	/**
+	 * Runs the model on the specified input, laid out as specified by the
+	 * model input axes, and returns the model output.
+	 * 
+	 * @param modelInput
+	 *            the input of the model, with origin at 0.
+	 * @param <R>
+	 *            the type of the pixels in the model input.
+	 * @return the output of the model, with origin at 0, halo included.
+	 */
+	< R extends RealType< R > & NativeType< R > > RandomAccessibleInterval< FloatType > runModel( final RandomAccessibleInterval< R > modelInput )
+	{
+		return runModel( modelInput, null );
+	}
 
-		final RandomAccessibleInterval< I > rai = Views.interval( input, validInputInterval );
-		final RandomAccessibleInterval< FloatType > raiFloat = createCopyOfRaiInWantedDataType( rai, new FloatType() );
-		final Tensor< FloatType > inputTensor = Tensor.build( "input0", spec.inputAxes, raiFloat );
+	/**
+	 * Runs the model on the specified input, asking the engine to write the
+	 * output in the specified target.
+	 * <p>
+	 * Engines are free to ignore the target and to return their output in a
+	 * new image. Callers must check whether the returned image is the target.
+	 * 
+	 * @param modelInput
+	 *            the input of the model, with origin at 0.
+	 * @param outputTarget
+	 *            the image to write the output in, with origin at 0 and the
+	 *            dimensions of the model output. If <code>null</code>, the
+	 *            engine allocates the output.
+	 * @param <R>
+	 *            the type of the pixels in the model input.
+	 * @return the output of the model, with origin at 0, halo included.
+	 */
+	< R extends RealType< R > & NativeType< R > > RandomAccessibleInterval< FloatType > runModel( final RandomAccessibleInterval< R > modelInput, final RandomAccessibleInterval< FloatType > outputTarget )
+	{
+		final Tensor< R > inputTensor = Tensor.build( "input0", spec.inputAxes, modelInput );
 		final List< Tensor< ? > > inputs = new ArrayList<>();
 		inputs.add( inputTensor );
 
-		// Outputs.
-		// TODO: Carlos: Passing in the cell does not really work!
-//		final Tensor< O > outputTensor = Tensor.build( "output0", spec.outputAxes, cell );
-		final Tensor< O > outputTensor = Tensor.buildEmptyTensor( "output0", spec.outputAxes );
+		final Tensor< FloatType > outputTensor;
+		if ( outputTarget == null )
+			outputTensor = Tensor.buildEmptyTensor( "output0", spec.outputAxes );
+		else
+			outputTensor = Tensor.build( "output0", spec.outputAxes, outputTarget );
 		final List< Tensor< ? > > outputs = new ArrayList<>();
 		outputs.add( outputTensor );
 
-		// Run the model.
 		try
 		{
-			model.runModel( inputs, outputs );
+			final Model model = models.lease();
+			try
+			{
+				model.runModel( inputs, outputs );
+			}
+			finally
+			{
+				models.release( model );
+			}
 			@SuppressWarnings( "unchecked" )
 			final RandomAccessibleInterval< FloatType > output = ( RandomAccessibleInterval< FloatType > ) outputs.get( 0 ).getData();
-			// Deal with halo.
-			final IntervalView< FloatType > slimOutput = Views.interval( output, shapeMath.removeOutputHalo( output ) );
-			RealTypeConverters.copyFromTo( Views.zeroMin( slimOutput ), Views.zeroMin( cell ) );
+			return output;
+		}
+		catch ( final InterruptedException e )
+		{
+			// Interrupted while waiting for a model instance.
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
 		}
 		catch ( final Exception e )
 		{
@@ -82,6 +468,113 @@ public class PredictorOp< I extends RealType< I > & NativeType< I >, O extends R
 		}
 	}
 
+	/**
+	 * Removes the halo from the model output and copies the result into the
+	 * specified output cell, post-processed and quantized if specified.
+	 * 
+	 * @param output
+	 *            the model output, with origin at 0.
+	 * @param cell
+	 *            the output cell to write into.
+	 */
+	void writeOutput( final RandomAccessibleInterval< FloatType > output, final RandomAccessibleInterval< O > cell )
+	{
+		// Deal with halo.
+		final IntervalView< FloatType > slimOutput = Views.interval( output, shapeMath.removeOutputHalo( output ) );
+		if ( postProcessing != null )
+			postProcessing.apply( Views.zeroMin( slimOutput ), spec.outputAxes.indexOf( 'c' ), Views.zeroMin( cell ), quantization );
+		else if ( quantization == null )
+		{
+			if ( !BlockCopy.copy( output, slimOutput, cell ) )
+				RealTypeConverters.copyFromTo( Views.zeroMin( slimOutput ), Views.zeroMin( cell ) );
+		}
+		else
+			LoopBuilder.setImages( Views.zeroMin( slimOutput ), Views.zeroMin( cell ) )
+					.forEachPixel( ( f, o ) -> o.setReal( quantization.quantize( f.getRealDouble() ) ) );
+	}
+
+	/**
+	 * Prepares the input tensors in the data type declared in the model specs,
+	 * so that models taking for instance 8-bit images do not pay for a
+	 * conversion to float.
+	 * <p>
+	 * When the input was extended from an {@link ArrayImg} of this type, the
+	 * tiles that lie inside it and span it entirely along all axes but the
+	 * last one are contiguous in its storage, and are passed to the model as
+	 * views, without copy. The other tiles are copied in recycled buffers.
+	 */
+	private final class InputTensors< R extends RealType< R > & NativeType< R > >
+	{
+
+		private final BufferPool< R > buffers;
+
+		private final ArrayImg< R, ? > source;
+
+		private InputTensors( final R type )
+		{
+			this.buffers = new BufferPool<>( type );
+			this.source = getArraySource( type );
+		}
+
+		@SuppressWarnings( "unchecked" )
+		private ArrayImg< R, ? > getArraySource( final R type )
+		{
+			Object source = input;
+			if ( source instanceof ExtendedRandomAccessibleInterval )
+				source = ( ( ExtendedRandomAccessibleInterval< ?, ? > ) source ).getSource();
+			if ( source instanceof ArrayImg && ( ( ArrayImg< ?, ? > ) source ).firstElement().getClass() == type.getClass() )
+				return ( ArrayImg< R, ? > ) source;
+			return null;
+		}
+
+		/**
+		 * Returns a view of the specified interval of the input, if it is
+		 * contiguous in the storage of an array image of the tensor type, or
+		 * <code>null</code> otherwise.
+		 */
+		private RandomAccessibleInterval< R > view( final Interval interval )
+		{
+			if ( source == null || !Intervals.contains( source, interval ) )
+				return null;
+			final int last = interval.numDimensions() - 1;
+			for ( int d = 0; d < last; d++ )
+				if ( interval.dimension( d ) != source.dimension( d ) )
+					return null;
+			if ( interval.dimension( last ) == source.dimension( last ) )
+				return source;
+			return Views.zeroMin( Views.interval( source, interval ) );
+		}
+
+		private Img< R > acquire( final long[] dimensions )
+		{
+			return buffers.acquire( dimensions );
+		}
+
+		private void release( final Img< R > buffer )
+		{
+			buffers.release( buffer );
+		}
+
+		/**
+		 * Copies the specified interval of the input into the specified
+		 * zero-min target, at the specified offset, converting it to the
+		 * tensor type. Uses {@link BoundaryPadding} or {@link BlockCopy} when
+		 * possible.
+		 */
+		private void copy( final Interval interval, final RandomAccessibleInterval< R > target, final long[] offset )
+		{
+			if ( preloader != null )
+				preloader.preload( interval );
+			final boolean copied = ( padding != null )
+					? padding.copy( interval, target, offset )
+					: BlockCopy.copy( input, interval, target, offset );
+			if ( copied )
+				return;
+			final RandomAccessibleInterval< I > rai = Views.zeroMin( Views.interval( input, interval ) );
+			RealTypeConverters.copyFromTo( rai, Views.offsetInterval( target, offset, interval.dimensionsAsLongArray() ) );
+		}
+	}
+
 	/**
 	 * Method that creates a copy of the tensor in the wanted data type.
 	 * Everything is the same or the new tensor (including the name), except the
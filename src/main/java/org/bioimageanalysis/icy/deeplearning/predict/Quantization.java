@@ -0,0 +1,140 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Affine mapping between the model output values and an unsigned integer
+ * storage type, so that outputs with a known range, such as probability maps
+ * in [0,1], can be cached in 8 or 16 bits instead of 32.
+ * <p>
+ * The range <code>[min, max]</code> is mapped to the full range of the
+ * storage type. Values outside of the range are clamped, and values are
+ * rounded to the nearest step, that is <code>(max - min) / 255</code> for 8
+ * bits and <code>(max - min) / 65535</code> for 16 bits.
+ */
+public class Quantization
+{
+
+	private final double min;
+
+	private final double max;
+
+	private final double storageMax;
+
+	private final double scale;
+
+	/**
+	 * Creates a mapping of the specified range to the full range of the
+	 * specified unsigned integer type.
+	 *
+	 * @param min
+	 *            the smallest output value.
+	 * @param max
+	 *            the largest output value.
+	 * @param storageType
+	 *            the unsigned integer type to store the values in.
+	 * @throws IllegalArgumentException
+	 *             if the range is not finite or empty.
+	 */
+	public Quantization( final double min, final double max, final RealType< ? > storageType )
+	{
+		if ( !Double.isFinite( min ) || !Double.isFinite( max ) || max <= min )
+			throw new IllegalArgumentException( "Quantization requires a finite data range, but it is [" + min + ", " + max + "]." );
+		this.min = min;
+		this.max = max;
+		this.storageMax = storageType.getMaxValue();
+		this.scale = storageMax / ( max - min );
+	}
+
+	/**
+	 * Creates a mapping of the output data range declared in the model specs
+	 * to 8 or 16 bits.
+	 *
+	 * @param spec
+	 *            the model specs.
+	 * @param bits
+	 *            8 or 16.
+	 * @return a new quantization.
+	 * @throws IllegalArgumentException
+	 *             if the data range is not finite, or if the number of bits is
+	 *             not supported.
+	 */
+	public static Quantization fromDataRange( final ModelSpec spec, final int bits )
+	{
+		return new Quantization( spec.outputDataRange[ 0 ], spec.outputDataRange[ 1 ], storageType( bits ) );
+	}
+
+	/**
+	 * Returns the storage type for the specified number of bits.
+	 *
+	 * @param bits
+	 *            8 or 16.
+	 * @param <T>
+	 *            the storage type.
+	 * @return a new {@link UnsignedByteType} or {@link UnsignedShortType}.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static < T extends RealType< T > & NativeType< T > > T storageType( final int bits )
+	{
+		switch ( bits )
+		{
+		case 8:
+			return ( T ) new UnsignedByteType();
+		case 16:
+			return ( T ) new UnsignedShortType();
+		default:
+			throw new IllegalArgumentException( "Quantization to " + bits + " bits is not supported, only to 8 or 16 bits." );
+		}
+	}
+
+	/**
+	 * Maps an output value to a stored value.
+	 *
+	 * @param value
+	 *            the output value.
+	 * @return the stored value.
+	 */
+	public double quantize( final double value )
+	{
+		final double q = Math.rint( ( value - min ) * scale );
+		return Math.max( 0, Math.min( storageMax, q ) );
+	}
+
+	/**
+	 * Maps a stored value back to an output value.
+	 *
+	 * @param stored
+	 *            the stored value.
+	 * @return the output value.
+	 */
+	public double dequantize( final double stored )
+	{
+		return min + stored / scale;
+	}
+
+	/**
+	 * Returns a view of the specified stored image, with the output values.
+	 *
+	 * @param stored
+	 *            the stored image.
+	 * @param <T>
+	 *            the storage type.
+	 * @return a float view.
+	 */
+	public < T extends RealType< T > > RandomAccessibleInterval< FloatType > dequantize( final RandomAccessibleInterval< T > stored )
+	{
+		return Converters.convert( stored, ( s, f ) -> f.setReal( dequantize( s.getRealDouble() ) ), new FloatType() );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "q" + ( long ) storageMax + "[" + min + "," + max + "]";
+	}
+}
@@ -0,0 +1,184 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Writes the tiles of a {@link StreamingPredictor} in a raw file, memory
+ * mapped, holding the whole output image.
+ * <p>
+ * The file has no header: it holds the pixel values in little-endian order,
+ * X varying fastest, in the N5 data type specified. It can be opened for
+ * instance with the raw import of ImageJ. Since one mapping cannot exceed 2
+ * GB, the file is mapped in several regions made of whole image rows. The
+ * operating system writes the dirty pages back to the file as needed, so the
+ * memory used does not depend on the image size.
+ *
+ * @param <T>
+ *            the type of the pixels in the tiles.
+ */
+public class RawFileSink< T extends RealType< T > > implements TileSink< T >
+{
+
+	private static final long MAX_MAPPING_BYTES = Integer.MAX_VALUE;
+
+	private final Path file;
+
+	private final long[] dimensions;
+
+	private final String dataType;
+
+	private final int bytesPerPixel;
+
+	private final long rowBytes;
+
+	private final long rowsPerMapping;
+
+	private final FileChannel channel;
+
+	private final MappedByteBuffer[] mappings;
+
+	/**
+	 * Creates the file, or overwrites it, and maps it in memory.
+	 *
+	 * @param file
+	 *            the file.
+	 * @param dimensions
+	 *            the dimensions of the output image.
+	 * @param dataType
+	 *            the data type of the pixels in the file, for instance
+	 *            "float32".
+	 * @throws IOException
+	 *             if the file cannot be created or mapped.
+	 * @throws IllegalArgumentException
+	 *             if one row of the image exceeds 2 GB.
+	 */
+	public RawFileSink( final Path file, final long[] dimensions, final String dataType ) throws IOException
+	{
+		this.file = file;
+		this.dimensions = dimensions.clone();
+		this.dataType = dataType;
+		this.bytesPerPixel = ChunkStore.bytesPerPixel( dataType );
+		this.rowBytes = dimensions[ 0 ] * bytesPerPixel;
+		if ( rowBytes > MAX_MAPPING_BYTES )
+			throw new IllegalArgumentException( "Image rows of " + rowBytes + " bytes cannot be mapped in memory." );
+		this.rowsPerMapping = MAX_MAPPING_BYTES / rowBytes;
+
+		final long nRows = Intervals.numElements( dimensions ) / dimensions[ 0 ];
+		this.channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+		this.mappings = new MappedByteBuffer[ ( int ) ( ( nRows + rowsPerMapping - 1 ) / rowsPerMapping ) ];
+		for ( int i = 0; i < mappings.length; i++ )
+		{
+			final long firstRow = i * rowsPerMapping;
+			final long size = Math.min( rowsPerMapping, nRows - firstRow ) * rowBytes;
+			mappings[ i ] = channel.map( FileChannel.MapMode.READ_WRITE, firstRow * rowBytes, size );
+			mappings[ i ].order( ByteOrder.LITTLE_ENDIAN );
+		}
+	}
+
+	public Path getFile()
+	{
+		return file;
+	}
+
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	public String getDataType()
+	{
+		return dataType;
+	}
+
+	@Override
+	public void write( final long[] gridPosition, final RandomAccessibleInterval< T > tile )
+	{
+		final int n = tile.numDimensions();
+		final long width = tile.dimension( 0 );
+		final long nTileRows = Intervals.numElements( tile ) / width;
+
+		// Read the tile array directly if possible.
+		final Object array = ChunkStore.storageArray( tile );
+		final BlockCopy.Kind kind = BlockCopy.Kind.of( tile );
+		final Cursor< T > cursor = ( array == null || kind == null )
+				? Views.flatIterable( tile ).cursor()
+				: null;
+
+		final long[] rowPosition = new long[ n ];
+		int i = 0;
+		for ( long r = 0; r < nTileRows; r++ )
+		{
+			// Index of the row in the image.
+			long row = 0;
+			long step = 1;
+			long rest = r;
+			for ( int d = 1; d < n; d++ )
+			{
+				rowPosition[ d ] = tile.min( d ) + rest % tile.dimension( d );
+				rest /= tile.dimension( d );
+				row += rowPosition[ d ] * step;
+				step *= dimensions[ d ];
+			}
+
+			final ByteBuffer mapping = mappings[ ( int ) ( row / rowsPerMapping ) ];
+			int position = ( int ) ( ( row % rowsPerMapping ) * rowBytes + tile.min( 0 ) * bytesPerPixel );
+			for ( long x = 0; x < width; x++ )
+			{
+				final double value = ( cursor == null ) ? kind.get( array, i++ ) : cursor.next().getRealDouble();
+				put( mapping, position, value );
+				position += bytesPerPixel;
+			}
+		}
+	}
+
+	private void put( final ByteBuffer buffer, final int index, final double value )
+	{
+		switch ( dataType )
+		{
+		case "uint8":
+		case "int8":
+			buffer.put( index, ( byte ) ( long ) value );
+			break;
+		case "uint16":
+		case "int16":
+			buffer.putShort( index, ( short ) ( long ) value );
+			break;
+		case "uint32":
+		case "int32":
+			buffer.putInt( index, ( int ) ( long ) value );
+			break;
+		case "float32":
+			buffer.putFloat( index, ( float ) value );
+			break;
+		default:
+			buffer.putDouble( index, value );
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		for ( final MappedByteBuffer mapping : mappings )
+			mapping.force();
+		channel.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RawFileSink " + file + " " + Util.printCoordinates( dimensions ) + " " + dataType;
+	}
+}
@@ -56,6 +56,17 @@ public class ShapeMath
 		return FinalInterval.createMinSize( min, outputDimensions );
 	}
 
+	/**
+	 * Returns <code>true</code> if the model output has a halo in at least one
+	 * dimension.
+	 * 
+	 * @return whether the model has a halo.
+	 */
+	public boolean hasHalo()
+	{
+		return Arrays.stream( outputHalos ).anyMatch( halo -> halo != 0 );
+	}
+
 	public Interval addOutputHalo( final Interval outputInterval )
 	{
 		return Intervals.expand( outputInterval, outputHalos );
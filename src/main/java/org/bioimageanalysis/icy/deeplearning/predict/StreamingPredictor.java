@@ -0,0 +1,189 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Predicts a whole output image tile after tile, writing each tile to a
+ * {@link TileSink} as soon as it is predicted, so that images much larger
+ * than the memory can be processed.
+ * <p>
+ * At most the specified number of tiles are in flight at the same time, each
+ * in its own thread: while one tile runs through the model, the input of the
+ * next ones is read and converted, and the output of the previous ones is
+ * written. The tiles are recycled from one to the next, so the memory used
+ * depends on the number of tiles in flight and on the tile size, not on the
+ * image size. Models are leased from the {@link ModelPool} of the predictor,
+ * so a tile waits for a free model instance before running.
+ * <p>
+ * The tiles are started in the specified {@link TraversalOrder}, raster
+ * order by default.
+ *
+ * @param <O>
+ *            the type of the pixels in the output.
+ */
+public class StreamingPredictor< O extends RealType< O > & NativeType< O > >
+{
+
+	private final Consumer< RandomAccessibleInterval< O > > predictor;
+
+	private final CellGrid grid;
+
+	private final int tilesInFlight;
+
+	private final TraversalOrder order;
+
+	private final BufferPool< O > tiles;
+
+	/**
+	 * Creates a streaming predictor.
+	 *
+	 * @param predictor
+	 *            the predictor filling one tile.
+	 * @param grid
+	 *            the tile grid of the output image.
+	 * @param type
+	 *            the type of the pixels in the output.
+	 * @param tilesInFlight
+	 *            the maximal number of tiles being read, predicted or written
+	 *            at the same time.
+	 */
+	public StreamingPredictor( final Consumer< RandomAccessibleInterval< O > > predictor, final CellGrid grid, final O type, final int tilesInFlight )
+	{
+		this( predictor, grid, type, tilesInFlight, TraversalOrder.RASTER );
+	}
+
+	/**
+	 * Creates a streaming predictor.
+	 *
+	 * @param predictor
+	 *            the predictor filling one tile.
+	 * @param grid
+	 *            the tile grid of the output image.
+	 * @param type
+	 *            the type of the pixels in the output.
+	 * @param tilesInFlight
+	 *            the maximal number of tiles being read, predicted or written
+	 *            at the same time.
+	 * @param order
+	 *            the order in which to visit the tiles.
+	 */
+	public StreamingPredictor( final Consumer< RandomAccessibleInterval< O > > predictor, final CellGrid grid, final O type, final int tilesInFlight, final TraversalOrder order )
+	{
+		if ( tilesInFlight < 1 )
+			throw new IllegalArgumentException( "At least one tile must be in flight, but got " + tilesInFlight + "." );
+		this.predictor = predictor;
+		this.grid = grid;
+		this.tilesInFlight = tilesInFlight;
+		this.order = order;
+		this.tiles = new BufferPool<>( type, tilesInFlight );
+	}
+
+	public CellGrid getGrid()
+	{
+		return grid;
+	}
+
+	/**
+	 * Predicts all the tiles and writes them to the specified sink, then
+	 * closes it. Stops at the first error.
+	 *
+	 * @param sink
+	 *            the sink to write the tiles to.
+	 * @throws IOException
+	 *             if a tile cannot be predicted or written.
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             tiles.
+	 */
+	public void run( final TileSink< O > sink ) throws IOException, InterruptedException
+	{
+		final Iterator< long[] > positions = order.iterator( grid.getGridDimensions() );
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool( tilesInFlight, r -> {
+			final Thread thread = new Thread( r, "streaming-predictor-" + threadCount.getAndIncrement() );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		final Semaphore inFlight = new Semaphore( tilesInFlight );
+		final AtomicReference< Exception > error = new AtomicReference<>();
+		try
+		{
+			while ( positions.hasNext() && error.get() == null )
+			{
+				inFlight.acquire();
+				final long[] gridPosition = positions.next();
+				executor.execute( () -> {
+					try
+					{
+						predict( gridPosition, sink );
+					}
+					catch ( final Exception e )
+					{
+						error.compareAndSet( null, e );
+					}
+					finally
+					{
+						inFlight.release();
+					}
+				} );
+			}
+			executor.shutdown();
+			executor.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+		}
+		finally
+		{
+			executor.shutdownNow();
+			sink.close();
+		}
+
+		final Exception e = error.get();
+		if ( e instanceof IOException )
+			throw ( IOException ) e;
+		if ( e != null )
+			throw new IOException( e );
+	}
+
+	private void predict( final long[] gridPosition, final TileSink< O > sink ) throws IOException
+	{
+		final long[] min = new long[ gridPosition.length ];
+		final int[] dimensions = new int[ gridPosition.length ];
+		grid.getCellDimensions( gridPosition, min, dimensions );
+		final long[] tileDimensions = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; d++ )
+			tileDimensions[ d ] = dimensions[ d ];
+
+		final Img< O > buffer = tiles.acquire( tileDimensions );
+		try
+		{
+			final RandomAccessibleInterval< O > tile = Views.translate( buffer, min );
+			predictor.accept( tile );
+			sink.write( gridPosition, tile );
+		}
+		finally
+		{
+			tiles.release( buffer );
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "StreamingPredictor " + grid + ", " + tilesInFlight + " tiles in flight, " + order + " order";
+	}
+}
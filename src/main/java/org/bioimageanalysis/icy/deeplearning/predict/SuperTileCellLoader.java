@@ -0,0 +1,207 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * A cell loader that predicts a block of several cells, a "super tile", with
+ * one model call, and fills all the cells of the block from it.
+ * <p>
+ * Each cell in a lazy output image pays for its own halo. When whole volumes
+ * are processed, predicting a block of neighbouring cells at once removes the
+ * halo between them. The cell that triggered the prediction is filled
+ * directly, and the other cells of the block are inserted in the cache as
+ * loaded, with {@link CellInserter}, so that they are not predicted again.
+ * <p>
+ * A block is predicted only once, even if several of its cells are requested
+ * concurrently: the other requests wait for the prediction in progress and
+ * copy their part of it.
+ *
+ * @param <T>
+ *            the type of the pixels in the output.
+ */
+public class SuperTileCellLoader< T extends RealType< T > & NativeType< T > > implements CellLoader< T >
+{
+
+	/**
+	 * Inserts a cell in a cache as loaded, if it is not already there.
+	 */
+	@FunctionalInterface
+	public static interface CellInserter< T >
+	{
+		/**
+		 * Inserts the cell at the specified index in the cache, loading it
+		 * with the specified loader if it is not already present.
+		 *
+		 * @param index
+		 *            the index of the cell in the cell grid.
+		 * @param loader
+		 *            the loader to fill the cell.
+		 * @throws Exception
+		 *             if the loader fails.
+		 */
+		public void insert( long index, CellLoader< T > loader ) throws Exception;
+	}
+
+	private final Consumer< RandomAccessibleInterval< T > > predictor;
+
+	private final CellGrid grid;
+
+	private final int[] cellsPerSuperTile;
+
+	private final T type;
+
+	private final ConcurrentHashMap< Long, CompletableFuture< RandomAccessibleInterval< T > > > inProgress = new ConcurrentHashMap<>();
+
+	private CellInserter< T > inserter;
+
+	/**
+	 * Creates a super tile loader.
+	 *
+	 * @param predictor
+	 *            the predictor to fill a super tile.
+	 * @param grid
+	 *            the cell grid of the lazy output image.
+	 * @param cellsPerSuperTile
+	 *            the number of cells in a super tile, along each dimension.
+	 * @param type
+	 *            the type of the pixels in the output.
+	 */
+	public SuperTileCellLoader( final Consumer< RandomAccessibleInterval< T > > predictor, final CellGrid grid, final int[] cellsPerSuperTile, final T type )
+	{
+		this.predictor = predictor;
+		this.grid = grid;
+		this.cellsPerSuperTile = cellsPerSuperTile;
+		this.type = type;
+	}
+
+	/**
+	 * Sets the method used to insert the cells of a super tile other than the
+	 * one requested in the cache. If not set, these cells are discarded.
+	 *
+	 * @param inserter
+	 *            the cell inserter.
+	 */
+	public void setCellInserter( final CellInserter< T > inserter )
+	{
+		this.inserter = inserter;
+	}
+
+	@Override
+	public void load( final SingleCellArrayImg< T, ? > cell ) throws Exception
+	{
+		final int n = grid.numDimensions();
+		final long[] superTilePosition = new long[ n ];
+		final long[] superGridDimensions = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			superTilePosition[ d ] = cell.min( d ) / grid.cellDimension( d ) / cellsPerSuperTile[ d ];
+			superGridDimensions[ d ] = ( grid.getGridDimensions()[ d ] + cellsPerSuperTile[ d ] - 1 ) / cellsPerSuperTile[ d ];
+		}
+		final long superTileIndex = IntervalIndexer.positionToIndex( superTilePosition, superGridDimensions );
+
+		final CompletableFuture< RandomAccessibleInterval< T > > future = new CompletableFuture<>();
+		final CompletableFuture< RandomAccessibleInterval< T > > previous = inProgress.putIfAbsent( superTileIndex, future );
+		if ( previous != null )
+		{
+			// Another thread predicts this super tile.
+			RealTypeConverters.copyFromTo( previous.get(), cell );
+			return;
+		}
+
+		try
+		{
+			final Interval interval = getSuperTileInterval( superTilePosition );
+			final RandomAccessibleInterval< T > superTile = Views.translate(
+					Util.getArrayOrCellImgFactory( interval, type ).create( interval ),
+					interval.minAsLongArray() );
+			predictor.accept( superTile );
+			future.complete( superTile );
+
+			RealTypeConverters.copyFromTo( superTile, cell );
+			insertOtherCells( superTile, superTilePosition, cell );
+		}
+		catch ( final Exception e )
+		{
+			future.completeExceptionally( e );
+			throw e;
+		}
+		finally
+		{
+			inProgress.remove( superTileIndex );
+		}
+	}
+
+	/**
+	 * Returns the interval covered by the cells of the specified super tile,
+	 * cropped to the image.
+	 */
+	private Interval getSuperTileInterval( final long[] superTilePosition )
+	{
+		final int n = grid.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			final long size = ( long ) grid.cellDimension( d ) * cellsPerSuperTile[ d ];
+			min[ d ] = superTilePosition[ d ] * size;
+			max[ d ] = Math.min( min[ d ] + size, grid.imgDimension( d ) ) - 1;
+		}
+		return new FinalInterval( min, max );
+	}
+
+	private void insertOtherCells( final RandomAccessibleInterval< T > superTile, final long[] superTilePosition, final Interval loadedCell ) throws Exception
+	{
+		if ( inserter == null )
+			return;
+
+		final int n = grid.numDimensions();
+		final long[] gridDimensions = grid.getGridDimensions();
+		final long[] first = new long[ n ];
+		final long[] last = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			first[ d ] = superTilePosition[ d ] * cellsPerSuperTile[ d ];
+			last[ d ] = Math.min( first[ d ] + cellsPerSuperTile[ d ], gridDimensions[ d ] ) - 1;
+		}
+		final long[] loadedPosition = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			loadedPosition[ d ] = loadedCell.min( d ) / grid.cellDimension( d );
+
+		final long[] position = first.clone();
+		while ( true )
+		{
+			if ( !Arrays.equals( position, loadedPosition ) )
+				inserter.insert( IntervalIndexer.positionToIndex( position, gridDimensions ), c -> RealTypeConverters.copyFromTo( superTile, c ) );
+
+			// Next cell position in the super tile.
+			int d = 0;
+			for ( ; d < n; d++ )
+			{
+				if ( position[ d ] < last[ d ] )
+				{
+					position[ d ]++;
+					break;
+				}
+				position[ d ] = first[ d ];
+			}
+			if ( d == n )
+				break;
+		}
+	}
+}
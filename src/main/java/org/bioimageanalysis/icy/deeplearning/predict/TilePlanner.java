@@ -0,0 +1,151 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.Arrays;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Chooses the output cell size so that the input tiles cut as few storage
+ * chunks of the input as possible, when the input is itself read from a
+ * chunked store.
+ * <p>
+ * Each tile reads its input interval, halo included, and the storage chunks
+ * it touches are decoded for it. A tile that straddles chunk boundaries
+ * decodes partial chunks that its neighbours decode again. For each axis
+ * that the model accepts in several sizes, the candidate tiles are the valid
+ * input sizes {@code inputShapeMin + k * inputShapeStep} up to the specified
+ * maximum, as in {@link TileSizeAutotuner}. Each candidate is scored by the
+ * total number of chunks decoded along the axis when tiling the whole image,
+ * which accounts both for the chunks cut by each tile and for the number of
+ * tiles. Since the chunks form a grid, the axes are independent and the
+ * total number of chunks decoded is the product of the scores. Ties go to
+ * the larger tile, that makes fewer model calls.
+ */
+public class TilePlanner
+{
+
+	/**
+	 * Maximal number of step increments to test.
+	 */
+	private static final int MAX_STEPS = 256;
+
+	private final ModelSpec spec;
+
+	private final ShapeMath shapeMath;
+
+	private final long[] inputDimensions;
+
+	private final long[] chunkDimensions;
+
+	/**
+	 * Creates a planner.
+	 *
+	 * @param spec
+	 *            the model specs.
+	 * @param inputDimensions
+	 *            the dimensions of the model input, in the model input axes
+	 *            order.
+	 * @param chunkDimensions
+	 *            the dimensions of the storage chunks of the model input, in
+	 *            the model input axes order.
+	 */
+	public TilePlanner( final ModelSpec spec, final long[] inputDimensions, final long[] chunkDimensions )
+	{
+		this.spec = spec;
+		this.shapeMath = new ShapeMath( spec );
+		this.inputDimensions = inputDimensions;
+		this.chunkDimensions = chunkDimensions;
+	}
+
+	/**
+	 * Returns the output cell dimensions that decode the fewest input chunks.
+	 *
+	 * @param maxInputDimensions
+	 *            the maximal dimensions of the input tiles, halo included, in
+	 *            the model input axes order.
+	 * @return the output cell dimensions, in the model output axes order.
+	 * @throws IllegalArgumentException
+	 *             if no valid tile fits in the maximal dimensions.
+	 */
+	public long[] getCellDimensions( final long[] maxInputDimensions )
+	{
+		final int n = spec.inputShapeMin.length;
+		final long[] cellDimensions = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			long bestCost = Long.MAX_VALUE;
+			for ( int k = 0; k <= MAX_STEPS; k++ )
+			{
+				final long size = spec.inputShapeMin[ d ] + ( long ) k * spec.inputShapeStep[ d ];
+				if ( k > 0 && size > maxInputDimensions[ d ] )
+					break;
+
+				final long cellSize = getCellSize( d, size );
+				if ( cellSize > 0 )
+				{
+					final long cost = countChunks( d, cellSize );
+					if ( cost <= bestCost )
+					{
+						bestCost = cost;
+						cellDimensions[ d ] = cellSize;
+					}
+				}
+				if ( spec.inputShapeStep[ d ] == 0 )
+					break;
+			}
+			if ( bestCost == Long.MAX_VALUE )
+				throw new IllegalArgumentException( "No valid tile fits in " + Arrays.toString( maxInputDimensions ) + " along axis " + spec.inputAxes.charAt( d ) + "." );
+		}
+		return cellDimensions;
+	}
+
+	/**
+	 * Returns the output cell size, along the specified axis, for an input
+	 * tile of the specified size, that is the model output minus the halo.
+	 */
+	private long getCellSize( final int d, final long inputSize )
+	{
+		final long[] input = new long[ spec.inputShapeMin.length ];
+		for ( int i = 0; i < input.length; i++ )
+			input[ i ] = spec.inputShapeMin[ i ];
+		input[ d ] = inputSize;
+		return shapeMath.getOutputDimensions( input )[ d ] - 2 * spec.outputHalo[ d ];
+	}
+
+	/**
+	 * Returns the number of input chunks decoded along the specified axis by
+	 * all the tiles of the image, with cells of the specified size.
+	 */
+	private long countChunks( final int d, final long cellSize )
+	{
+		final long[] one = new long[ spec.inputShapeMin.length ];
+		Arrays.fill( one, 1 );
+		final long outputSize = shapeMath.getOutputDimensions( inputDimensions )[ d ];
+		final long nTiles = ( outputSize + cellSize - 1 ) / cellSize;
+		final long chunk = chunkDimensions[ d ];
+
+		long count = 0;
+		for ( long i = 0; i < nTiles; i++ )
+		{
+			final long[] min = new long[ one.length ];
+			final long[] size = one.clone();
+			min[ d ] = i * cellSize;
+			size[ d ] = cellSize;
+			final Interval input = shapeMath.getValidInputInterval( shapeMath.addOutputHalo( FinalInterval.createMinSize( min, size ) ) );
+
+			// Only the part inside the image is read from the chunks.
+			final long from = Math.max( 0, input.min( d ) );
+			final long to = Math.min( inputDimensions[ d ] - 1, input.max( d ) );
+			if ( to >= from )
+				count += to / chunk - from / chunk + 1;
+		}
+		return count;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "TilePlanner for input " + Arrays.toString( inputDimensions ) + " in chunks of " + Arrays.toString( chunkDimensions );
+	}
+}
@@ -0,0 +1,56 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Receives the tiles predicted by a {@link StreamingPredictor}, to write them
+ * out of memory as they are produced.
+ * <p>
+ * Tiles are written concurrently, from several threads, and in no particular
+ * order. The tile passed to {@link #write(long[], RandomAccessibleInterval)}
+ * is recycled afterwards, so a sink must not keep a reference to it.
+ *
+ * @param <T>
+ *            the type of the pixels in the tiles.
+ */
+public interface TileSink< T > extends Closeable
+{
+
+	/**
+	 * Writes the tile at the specified position in the tile grid.
+	 *
+	 * @param gridPosition
+	 *            the position of the tile in the tile grid.
+	 * @param tile
+	 *            the tile, with its position in the output image.
+	 * @throws IOException
+	 *             if the tile cannot be written.
+	 */
+	public void write( long[] gridPosition, RandomAccessibleInterval< T > tile ) throws IOException;
+
+	/**
+	 * Flushes the tiles written and releases the resources of this sink.
+	 */
+	@Override
+	public default void close() throws IOException
+	{}
+
+	/**
+	 * Returns a sink that stores each tile as one chunk of the specified
+	 * store. The store cell dimensions must be the tile dimensions.
+	 *
+	 * @param store
+	 *            the chunk store.
+	 * @param <T>
+	 *            the type of the pixels in the tiles.
+	 * @return a new sink.
+	 */
+	public static < T extends RealType< T > > TileSink< T > of( final ChunkStore store )
+	{
+		return store::write;
+	}
+}
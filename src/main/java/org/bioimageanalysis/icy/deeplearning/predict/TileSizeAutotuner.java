@@ -0,0 +1,284 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.util.Intervals;
+
+/**
+ * Finds the output cell size that gives the best throughput for a model on
+ * this machine.
+ * <p>
+ * The candidate tiles are the valid input sizes {@code inputShapeMin[ d ] +
+ * k[ d ] * inputShapeStep[ d ]}, with a number of steps k chosen
+ * independently along each axis, so that anisotropic tiles, for instance thin
+ * along Z, are candidates too. The numbers of steps tested along each axis
+ * are 0, 1, 2, 3, 4, 6, 8, 12... up to {@value #MAX_STEPS}. For each
+ * candidate, the output cell is the model output minus the halo. Each
+ * candidate is timed on a blank input, and scored by the number of useful
+ * output voxels (the cell, not the halo) produced per second. Candidates
+ * whose buffers would exceed the memory cap are not tested, and only the
+ * {@value #MAX_CANDIDATES} largest candidates are tested.
+ * <p>
+ * The best cell size is stored in a file in the user home folder, keyed by
+ * the fingerprint of the model weights, the host and the memory cap, so that
+ * the tuning is done once per model and machine.
+ */
+public class TileSizeAutotuner
+{
+
+	private static final File CACHE_FILE = new File( System.getProperty( "user.home" ), ".predictorop" + File.separator + "tile-sizes.properties" );
+
+	private static final int WARMUP_RUNS = 2;
+
+	private static final int TIMED_RUNS = 3;
+
+	/**
+	 * Maximal number of step increments to test along an axis.
+	 */
+	private static final int MAX_STEPS = 64;
+
+	/**
+	 * Numbers of step increments tested along each axis.
+	 */
+	private static final int[] STEPS = { 0, 1, 2, 3, 4, 6, 8, 12, 16, 24, 32, 48, MAX_STEPS };
+
+	/**
+	 * Maximal number of candidate tiles to time.
+	 */
+	private static final int MAX_CANDIDATES = 64;
+
+	private final ModelPool models;
+
+	private final ModelSpec spec;
+
+	private final ShapeMath shapeMath;
+
+	public TileSizeAutotuner( final ModelPool models, final ModelSpec spec )
+	{
+		this.models = models;
+		this.spec = spec;
+		this.shapeMath = new ShapeMath( spec );
+	}
+
+	/**
+	 * Returns the best output cell dimensions, read from the cache if this
+	 * model was already tuned on this machine with the same memory cap, and
+	 * tuned then stored in the cache otherwise.
+	 * 
+	 * @param maxBytes
+	 *            the maximal number of bytes the buffers of one tile can use.
+	 * @return the output cell dimensions, in the model output axes order.
+	 */
+	public long[] getCellDimensions( final long maxBytes )
+	{
+		final String key = cacheKey( maxBytes );
+		final Properties cache = readCache();
+		final String cached = cache.getProperty( key );
+		if ( cached != null )
+			return Arrays.stream( cached.split( "," ) ).mapToLong( Long::parseLong ).toArray();
+
+		final long[] cellDimensions = tune( maxBytes );
+		cache.setProperty( key, Arrays.stream( cellDimensions ).mapToObj( Long::toString ).reduce( ( a, b ) -> a + "," + b ).get() );
+		writeCache( cache );
+		return cellDimensions;
+	}
+
+	/**
+	 * Times all the candidate tiles that fit in the memory cap and returns
+	 * the output cell dimensions with the best useful voxels per second.
+	 * 
+	 * @param maxBytes
+	 *            the maximal number of bytes the buffers of one tile can use.
+	 * @return the output cell dimensions, in the model output axes order.
+	 */
+	public long[] tune( final long maxBytes )
+	{
+		final PredictorOp< FloatType, FloatType > op = new PredictorOp<>( models, ConstantUtils.constantRandomAccessible( new FloatType(), spec.inputAxes.length() ), spec );
+
+		long[] best = null;
+		double bestScore = -1.;
+		for ( final long[] cellDimensions : getCandidates( maxBytes ) )
+		{
+			final RandomAccessibleInterval< FloatType > cell = ArrayImgs.floats( cellDimensions );
+			for ( int i = 0; i < WARMUP_RUNS; i++ )
+				op.accept( cell );
+
+			final long start = System.nanoTime();
+			for ( int i = 0; i < TIMED_RUNS; i++ )
+				op.accept( cell );
+			final double secondsPerCell = ( System.nanoTime() - start ) / 1e9 / TIMED_RUNS;
+
+			final double score = Intervals.numElements( cellDimensions ) / secondsPerCell;
+			System.out.println( String.format( "Cell %s: %.0f useful voxels/s, halo overhead %.0f%%.",
+					Arrays.toString( cellDimensions ), score, 100. * haloOverhead( cellDimensions ) ) );
+			if ( score > bestScore )
+			{
+				bestScore = score;
+				best = cellDimensions;
+			}
+		}
+		if ( best == null )
+			throw new IllegalArgumentException( "No valid tile fits in " + maxBytes + " bytes." );
+		return best;
+	}
+
+	/**
+	 * Returns the output cell dimensions of the valid tiles whose buffers fit
+	 * in the memory cap, with the number of steps chosen independently along
+	 * each axis, from the smallest to the largest. At most
+	 * {@value #MAX_CANDIDATES} candidates are returned, the largest ones.
+	 * 
+	 * @param maxBytes
+	 *            the maximal number of bytes the buffers of one tile can use.
+	 * @return the candidate output cell dimensions.
+	 */
+	public List< long[] > getCandidates( final long maxBytes )
+	{
+		final int n = spec.inputShapeMin.length;
+		final int[] nSteps = new int[ n ];
+		for ( int d = 0; d < n; d++ )
+			nSteps[ d ] = ( spec.inputShapeStep[ d ] == 0 ) ? 1 : STEPS.length;
+
+		final List< long[] > candidates = new ArrayList<>();
+		final int[] steps = new int[ n ];
+		final long[] inputDimensions = new long[ n ];
+		while ( true )
+		{
+			for ( int d = 0; d < n; d++ )
+				inputDimensions[ d ] = spec.inputShapeMin[ d ] + ( long ) STEPS[ steps[ d ] ] * spec.inputShapeStep[ d ];
+			final long[] cellDimensions = getCellDimensions( inputDimensions );
+			if ( cellDimensions != null )
+			{
+				if ( estimateBytes( cellDimensions ) <= maxBytes )
+					candidates.add( cellDimensions );
+				else
+					// Larger tiles along the first axis do not fit either.
+					steps[ 0 ] = nSteps[ 0 ] - 1;
+			}
+
+			// Next combination of steps, the first axis varying fastest.
+			int d = 0;
+			for ( ; d < n; d++ )
+			{
+				if ( ++steps[ d ] < nSteps[ d ] )
+					break;
+				steps[ d ] = 0;
+			}
+			if ( d == n )
+				break;
+		}
+
+		candidates.sort( Comparator.comparingLong( c -> Intervals.numElements( c ) ) );
+		return candidates.subList( Math.max( 0, candidates.size() - MAX_CANDIDATES ), candidates.size() );
+	}
+
+	/**
+	 * Returns the output cell dimensions for the specified input tile, that
+	 * is the model output minus the halo, or <code>null</code> if the halo
+	 * does not leave a cell.
+	 */
+	private long[] getCellDimensions( final long[] inputDimensions )
+	{
+		final long[] cellDimensions = shapeMath.getOutputDimensions( inputDimensions );
+		for ( int d = 0; d < cellDimensions.length; d++ )
+		{
+			cellDimensions[ d ] -= 2 * spec.outputHalo[ d ];
+			if ( cellDimensions[ d ] <= 0 )
+				return null;
+		}
+		return cellDimensions;
+	}
+
+	/**
+	 * Estimates the number of bytes used by the float input and output
+	 * buffers needed to predict a cell.
+	 */
+	private long estimateBytes( final long[] cellDimensions )
+	{
+		final Interval validInput = shapeMath.getValidInputInterval( shapeMath.addOutputHalo( new FinalInterval( cellDimensions ) ) );
+		final long[] outputDimensions = shapeMath.getOutputDimensions( validInput.dimensionsAsLongArray() );
+		return 4 * ( Intervals.numElements( validInput ) + Intervals.numElements( outputDimensions ) );
+	}
+
+	/**
+	 * Returns the fraction of the model output that is discarded as halo.
+	 */
+	private double haloOverhead( final long[] cellDimensions )
+	{
+		final Interval validInput = shapeMath.getValidInputInterval( shapeMath.addOutputHalo( new FinalInterval( cellDimensions ) ) );
+		final long[] outputDimensions = shapeMath.getOutputDimensions( validInput.dimensionsAsLongArray() );
+		return 1. - ( double ) Intervals.numElements( cellDimensions ) / Intervals.numElements( outputDimensions );
+	}
+
+	private String cacheKey( final long maxBytes )
+	{
+		final String model;
+		try
+		{
+			model = Fingerprints.model( models.getModelFolder(), spec );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+			throw new RuntimeException( e );
+		}
+		String host;
+		try
+		{
+			host = InetAddress.getLocalHost().getHostName();
+		}
+		catch ( final UnknownHostException e )
+		{
+			host = "localhost";
+		}
+		return ( model + "@" + host + "-" + Runtime.getRuntime().availableProcessors() + "cores-" + models.size() + "instances-" + maxBytes + "bytes" )
+				.replaceAll( "[^A-Za-z0-9._@-]", "_" );
+	}
+
+	private static Properties readCache()
+	{
+		final Properties properties = new Properties();
+		if ( !CACHE_FILE.exists() )
+			return properties;
+		try (Reader reader = new FileReader( CACHE_FILE ))
+		{
+			properties.load( reader );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+		return properties;
+	}
+
+	private static void writeCache( final Properties properties )
+	{
+		CACHE_FILE.getParentFile().mkdirs();
+		try (Writer writer = new FileWriter( CACHE_FILE ))
+		{
+			properties.store( writer, "Output cell dimensions tuned for throughput." );
+		}
+		catch ( final IOException e )
+		{
+			e.printStackTrace();
+		}
+	}
+}
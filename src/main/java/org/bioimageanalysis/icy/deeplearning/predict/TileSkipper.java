@@ -0,0 +1,303 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Wraps a predictor so that the cells whose input is background are not run
+ * through the model, which saves most of the work on volumes that are mostly
+ * empty.
+ * <p>
+ * Whether a cell is background is decided by a {@link Criterion} on the
+ * interval of the input that the model would read for it, halo included, as
+ * given by {@link ShapeMath#addOutputHalo(Interval)}. A cell is thus only
+ * skipped if no foreground is close enough to influence its prediction, so
+ * that the cells predicted next to skipped cells are the same as without
+ * skipping, and no seam appears.
+ * <p>
+ * Skipped cells are either filled with a constant, in the stored units, or
+ * receive a copy of the prediction of the first background cell of the same
+ * size and the same background value, which is predicted normally. The
+ * background value is returned by the criterion, for instance the mean of
+ * the input, so that uniform cells of different intensities do not share a
+ * prediction. Only a few background predictions are kept; the background
+ * cells beyond them are predicted normally.
+ *
+ * @param <O>
+ *            the type of the pixels in the output.
+ */
+public class TileSkipper< O extends RealType< O > & NativeType< O > > implements Consumer< RandomAccessibleInterval< O > >
+{
+
+	/**
+	 * Decides whether the input of a cell is background.
+	 */
+	@FunctionalInterface
+	public interface Criterion
+	{
+		/**
+		 * Returns the background value of the specified interval of the
+		 * input, or NaN if it is not background. The cells whose input is
+		 * background can be skipped, and the skipped cells only share the
+		 * prediction of background cells with the same value.
+		 *
+		 * @param inputInterval
+		 *            the interval of the input, in the model input axes
+		 *            order, halo included. It may extend past the input
+		 *            borders.
+		 * @return the background value, or NaN if the interval is not
+		 *         background.
+		 */
+		double background( Interval inputInterval );
+
+		/**
+		 * Returns <code>true</code> if the specified interval of the input is
+		 * background, so that the cell it is the input of can be skipped.
+		 *
+		 * @param inputInterval
+		 *            the interval of the input, in the model input axes
+		 *            order, halo included. It may extend past the input
+		 *            borders.
+		 * @return whether the interval is background.
+		 */
+		default boolean isBackground( final Interval inputInterval )
+		{
+			return !Double.isNaN( background( inputInterval ) );
+		}
+
+		/**
+		 * Returns a criterion that accepts the intervals accepted by this one
+		 * or by the specified one, with the background value of this one if
+		 * both accept them.
+		 *
+		 * @param other
+		 *            the other criterion.
+		 * @return a new criterion.
+		 */
+		default Criterion or( final Criterion other )
+		{
+			return interval -> {
+				final double value = background( interval );
+				return Double.isNaN( value ) ? other.background( interval ) : value;
+			};
+		}
+
+		/**
+		 * Returns a criterion that is true where the specified mask is zero
+		 * everywhere. All the intervals outside the mask have the background
+		 * value 0, which assumes that the model sees all of them alike.
+		 *
+		 * @param mask
+		 *            the foreground mask, laid out as the model input.
+		 *            Non-zero values are foreground. Only the part of the
+		 *            intervals inside the mask is read.
+		 * @return a new criterion.
+		 */
+		static Criterion mask( final RandomAccessibleInterval< ? extends RealType< ? > > mask )
+		{
+			return interval -> {
+				final Interval region = Intervals.intersect( mask, interval );
+				if ( Intervals.isEmpty( region ) )
+					return Double.NaN;
+				for ( final RealType< ? > value : Views.interval( mask, region ) )
+					if ( value.getRealDouble() != 0 )
+						return Double.NaN;
+				return 0;
+			};
+		}
+
+		/**
+		 * Returns a criterion that is true where the variance of the input is
+		 * at most the specified threshold. With a threshold of 0, the
+		 * criterion is true where all the values are equal. The background
+		 * value is the mean of the input.
+		 *
+		 * @param input
+		 *            the input, laid out as the model input. Only the part of
+		 *            the intervals inside the input is read.
+		 * @param maxVariance
+		 *            the largest variance of the background.
+		 * @return a new criterion.
+		 */
+		static Criterion lowVariance( final RandomAccessibleInterval< ? extends RealType< ? > > input, final double maxVariance )
+		{
+			return interval -> {
+				final Interval region = Intervals.intersect( input, interval );
+				if ( Intervals.isEmpty( region ) )
+					return Double.NaN;
+
+				if ( maxVariance <= 0 )
+				{
+					final Cursor< ? extends RealType< ? > > cursor = Views.interval( input, region ).cursor();
+					final double first = cursor.next().getRealDouble();
+					while ( cursor.hasNext() )
+						if ( cursor.next().getRealDouble() != first )
+							return Double.NaN;
+					return first;
+				}
+
+				// Welford's algorithm.
+				long n = 0;
+				double mean = 0;
+				double m2 = 0;
+				for ( final RealType< ? > value : Views.interval( input, region ) )
+				{
+					final double v = value.getRealDouble();
+					n++;
+					final double delta = v - mean;
+					mean += delta / n;
+					m2 += delta * ( v - mean );
+				}
+				return ( m2 / n <= maxVariance ) ? mean : Double.NaN;
+			};
+		}
+	}
+
+	/**
+	 * The maximal number of background predictions kept.
+	 */
+	private static final int MAX_BACKGROUNDS = 16;
+
+	private final Consumer< RandomAccessibleInterval< O > > predictor;
+
+	private final ShapeMath shapeMath;
+
+	private final Criterion criterion;
+
+	/**
+	 * The value to fill the skipped cells with, or NaN to copy the background
+	 * prediction.
+	 */
+	private final double fillValue;
+
+	/**
+	 * The prediction of the first background cell, by cell dimensions and
+	 * background value.
+	 */
+	private final Map< List< Long >, Img< O > > backgrounds = new ConcurrentHashMap<>();
+
+	private final AtomicLong skipped = new AtomicLong();
+
+	private final AtomicLong predicted = new AtomicLong();
+
+	/**
+	 * Creates a predictor that fills the skipped cells with a constant, or
+	 * with the background prediction if the constant is NaN.
+	 *
+	 * @param predictor
+	 *            the predictor of the other cells.
+	 * @param spec
+	 *            the model specs.
+	 * @param criterion
+	 *            decides which cells are skipped.
+	 * @param fillValue
+	 *            the value of the skipped cells, in the stored units, or NaN
+	 *            to copy the prediction of the first background cell.
+	 */
+	public TileSkipper( final Consumer< RandomAccessibleInterval< O > > predictor, final ModelSpec spec, final Criterion criterion, final double fillValue )
+	{
+		this.predictor = predictor;
+		this.shapeMath = new ShapeMath( spec );
+		this.criterion = criterion;
+		this.fillValue = fillValue;
+	}
+
+	/**
+	 * Creates a predictor that copies the prediction of the first background
+	 * cell of the same size and background value in the skipped cells.
+	 *
+	 * @param predictor
+	 *            the predictor of the other cells.
+	 * @param spec
+	 *            the model specs.
+	 * @param criterion
+	 *            decides which cells are skipped.
+	 */
+	public TileSkipper( final Consumer< RandomAccessibleInterval< O > > predictor, final ModelSpec spec, final Criterion criterion )
+	{
+		this( predictor, spec, criterion, Double.NaN );
+	}
+
+	@Override
+	public void accept( final RandomAccessibleInterval< O > cell )
+	{
+		final Interval inputInterval = shapeMath.getValidInputInterval( shapeMath.addOutputHalo( cell ) );
+		final double value = criterion.background( inputInterval );
+		if ( Double.isNaN( value ) )
+		{
+			predictor.accept( cell );
+			predicted.incrementAndGet();
+			return;
+		}
+
+		if ( !Double.isNaN( fillValue ) )
+		{
+			Views.flatIterable( cell ).forEach( p -> p.setReal( fillValue ) );
+			skipped.incrementAndGet();
+			return;
+		}
+
+		final List< Long > key = LongStream.concat( Arrays.stream( cell.dimensionsAsLongArray() ), LongStream.of( Double.doubleToLongBits( value ) ) )
+				.boxed()
+				.collect( Collectors.toList() );
+		final Img< O > background = backgrounds.get( key );
+		if ( background != null )
+		{
+			RealTypeConverters.copyFromTo( background, Views.zeroMin( cell ) );
+			skipped.incrementAndGet();
+			return;
+		}
+
+		predictor.accept( cell );
+		predicted.incrementAndGet();
+		if ( backgrounds.size() >= MAX_BACKGROUNDS )
+			return;
+		final Img< O > copy = new ArrayImgFactory<>( Util.getTypeFromInterval( cell ).createVariable() ).create( cell.dimensionsAsLongArray() );
+		RealTypeConverters.copyFromTo( Views.zeroMin( cell ), copy );
+		backgrounds.putIfAbsent( key, copy );
+	}
+
+	/**
+	 * Returns the number of cells skipped so far.
+	 *
+	 * @return the number of skipped cells.
+	 */
+	public long skippedCells()
+	{
+		return skipped.get();
+	}
+
+	/**
+	 * Returns the number of cells run through the model so far.
+	 *
+	 * @return the number of predicted cells.
+	 */
+	public long predictedCells()
+	{
+		return predicted.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "TileSkipper, " + skipped.get() + " cells skipped, " + predicted.get() + " predicted";
+	}
+}
@@ -0,0 +1,232 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * The order in which the tiles of a grid are visited by a whole image run,
+ * see {@link StreamingPredictor}.
+ * <p>
+ * In raster order, two tiles adjacent along Y or Z are a whole row or plane
+ * of tiles apart, so the input blocks they share, and the pages of the
+ * input file, are often evicted from the caches in between. The Morton
+ * (Z-order) and Hilbert curves visit the grid in compact blocks of tiles,
+ * so that neighbouring tiles are visited shortly after each other. On grids
+ * of power-of-two size, the Hilbert curve only ever steps to an adjacent
+ * tile, whereas the Morton curve jumps between its blocks.
+ * <p>
+ * Grids of any size are supported: the tiles are sorted by their index along
+ * the curve covering the enclosing grid of power-of-two size, which skips
+ * the positions outside of the grid. Dimensions with a single tile are
+ * ignored.
+ */
+public enum TraversalOrder
+{
+	/**
+	 * X varying fastest, then Y, then Z.
+	 */
+	RASTER,
+
+	/**
+	 * Morton order, interleaving the bits of the coordinates.
+	 */
+	MORTON,
+
+	/**
+	 * Hilbert order.
+	 */
+	HILBERT;
+
+	/**
+	 * Returns an iterator over the positions of all the tiles of a grid, in
+	 * this order.
+	 *
+	 * @param gridDimensions
+	 *            the number of tiles along each dimension.
+	 * @return a new iterator over the tile grid positions. The positions
+	 *         returned are new arrays.
+	 * @throws IllegalArgumentException
+	 *             if the grid is too large to be ordered along a curve.
+	 */
+	public Iterator< long[] > iterator( final long[] gridDimensions )
+	{
+		if ( this == RASTER )
+			return rasterIterator( gridDimensions );
+
+		// Dimensions along which the curve runs.
+		final int[] axes = IntStream.range( 0, gridDimensions.length )
+				.filter( d -> gridDimensions[ d ] > 1 )
+				.toArray();
+		int bits = 1;
+		for ( final int d : axes )
+			bits = Math.max( bits, 64 - Long.numberOfLeadingZeros( gridDimensions[ d ] - 1 ) );
+		if ( axes.length * bits > 63 )
+			throw new IllegalArgumentException( "Tile grid " + Arrays.toString( gridDimensions ) + " is too large for the " + this + " order." );
+		final long nTiles = Intervals.numElements( gridDimensions );
+		if ( nTiles > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Tile grid " + Arrays.toString( gridDimensions ) + " has too many tiles for the " + this + " order." );
+
+		// Sort the curve indices of the tiles, then decode them in turn.
+		final long[] keys = new long[ ( int ) nTiles ];
+		final long[] position = new long[ gridDimensions.length ];
+		final long[] coordinates = new long[ axes.length ];
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			IntervalIndexer.indexToPosition( i, gridDimensions, position );
+			for ( int a = 0; a < axes.length; a++ )
+				coordinates[ a ] = position[ axes[ a ] ];
+			if ( this == HILBERT && axes.length > 0 )
+				axesToTranspose( coordinates, bits );
+			keys[ i ] = interleave( coordinates, bits );
+		}
+		Arrays.sort( keys );
+
+		final int nBits = bits;
+		return new Iterator< long[] >()
+		{
+			private int i = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				return i < keys.length;
+			}
+
+			@Override
+			public long[] next()
+			{
+				if ( !hasNext() )
+					throw new NoSuchElementException();
+				final long[] c = new long[ axes.length ];
+				deinterleave( keys[ i++ ], c, nBits );
+				if ( TraversalOrder.this == HILBERT && axes.length > 0 )
+					transposeToAxes( c, nBits );
+				final long[] p = new long[ gridDimensions.length ];
+				for ( int a = 0; a < axes.length; a++ )
+					p[ axes[ a ] ] = c[ a ];
+				return p;
+			}
+		};
+	}
+
+	private static Iterator< long[] > rasterIterator( final long[] gridDimensions )
+	{
+		final long nTiles = Intervals.numElements( gridDimensions );
+		return new Iterator< long[] >()
+		{
+			private long index = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				return index < nTiles;
+			}
+
+			@Override
+			public long[] next()
+			{
+				if ( !hasNext() )
+					throw new NoSuchElementException();
+				final long[] p = new long[ gridDimensions.length ];
+				IntervalIndexer.indexToPosition( index++, gridDimensions, p );
+				return p;
+			}
+		};
+	}
+
+	/**
+	 * Interleaves the bits of the coordinates, most significant first, the
+	 * first coordinate leading.
+	 */
+	private static long interleave( final long[] x, final int bits )
+	{
+		long key = 0;
+		for ( int b = bits - 1; b >= 0; b-- )
+			for ( int i = 0; i < x.length; i++ )
+				key = ( key << 1 ) | ( ( x[ i ] >> b ) & 1 );
+		return key;
+	}
+
+	private static void deinterleave( final long key, final long[] x, final int bits )
+	{
+		Arrays.fill( x, 0 );
+		int shift = bits * x.length;
+		for ( int b = bits - 1; b >= 0; b-- )
+			for ( int i = 0; i < x.length; i++ )
+				x[ i ] |= ( ( key >> --shift ) & 1 ) << b;
+	}
+
+	/**
+	 * Converts coordinates to the transposed Hilbert index, in place. From J.
+	 * Skilling, "Programming the Hilbert curve", AIP Conference Proceedings
+	 * 707, 2004.
+	 */
+	private static void axesToTranspose( final long[] x, final int bits )
+	{
+		final int n = x.length;
+		for ( long q = 1L << ( bits - 1 ); q > 1; q >>= 1 )
+		{
+			final long p = q - 1;
+			for ( int i = 0; i < n; i++ )
+			{
+				if ( ( x[ i ] & q ) != 0 )
+				{
+					x[ 0 ] ^= p;
+				}
+				else
+				{
+					final long t = ( x[ 0 ] ^ x[ i ] ) & p;
+					x[ 0 ] ^= t;
+					x[ i ] ^= t;
+				}
+			}
+		}
+
+		// Gray encode.
+		for ( int i = 1; i < n; i++ )
+			x[ i ] ^= x[ i - 1 ];
+		long t = 0;
+		for ( long q = 1L << ( bits - 1 ); q > 1; q >>= 1 )
+			if ( ( x[ n - 1 ] & q ) != 0 )
+				t ^= q - 1;
+		for ( int i = 0; i < n; i++ )
+			x[ i ] ^= t;
+	}
+
+	/**
+	 * Converts the transposed Hilbert index back to coordinates, in place.
+	 */
+	private static void transposeToAxes( final long[] x, final int bits )
+	{
+		final int n = x.length;
+
+		// Gray decode.
+		final long t = x[ n - 1 ] >> 1;
+		for ( int i = n - 1; i > 0; i-- )
+			x[ i ] ^= x[ i - 1 ];
+		x[ 0 ] ^= t;
+
+		for ( long q = 2; q != 1L << bits; q <<= 1 )
+		{
+			final long p = q - 1;
+			for ( int i = n - 1; i >= 0; i-- )
+			{
+				if ( ( x[ i ] & q ) != 0 )
+				{
+					x[ 0 ] ^= p;
+				}
+				else
+				{
+					final long s = ( x[ 0 ] ^ x[ i ] ) & p;
+					x[ 0 ] ^= s;
+					x[ i ] ^= s;
+				}
+			}
+		}
+	}
+}
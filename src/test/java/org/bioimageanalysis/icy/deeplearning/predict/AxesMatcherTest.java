@@ -0,0 +1,139 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bioimageanalysis.icy.deeplearning.predict.AxesMatcher.DimensionalityModification;
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class AxesMatcherTest
+{
+
+	@Test
+	public void testAddAxes()
+	{
+		check( "bczyx", "xyz", image( 7, 5, 3 ) );
+		check( "bcyx", "xy", image( 7, 5 ) );
+	}
+
+	@Test
+	public void testDropAxes()
+	{
+		check( "xyz", "bczyx", image( 1, 2, 3, 5, 7 ) );
+		check( "cxyz", "bczyx", image( 1, 2, 3, 5, 7 ) );
+	}
+
+	@Test
+	public void testPermuteAxes()
+	{
+		check( "zyx", "xyz", image( 7, 5, 3 ) );
+		check( "yxz", "xyz", image( 7, 5, 3 ) );
+	}
+
+	@Test
+	public void testAddDropAndPermuteAxes()
+	{
+		check( "bczyx", "xyzt", image( 7, 5, 3, 2 ) );
+		check( "bczyx", "xyzt", Views.translate( image( 7, 5, 3, 2 ), 10, -4, 2, 1 ) );
+		check( "cxyz", "bczyx", Views.translate( image( 1, 2, 3, 5, 7 ), 0, 0, 5, 6, 7 ) );
+	}
+
+	@Test
+	public void testIdentity()
+	{
+		final Img< UnsignedShortType > img = image( 7, 5, 3 );
+		assertSame( img, AxesMatcher.matchAxes( "xyz", "xyz", img ) );
+	}
+
+	private static void check( final String desiredAxes, final String inputAxes, final RandomAccessibleInterval< UnsignedShortType > input )
+	{
+		final RandomAccessibleInterval< UnsignedShortType > expected = matchAxesWithSequence( desiredAxes, inputAxes, input );
+		final RandomAccessibleInterval< UnsignedShortType > actual = AxesMatcher.matchAxes( desiredAxes, inputAxes, input );
+		final String message = inputAxes + " -> " + desiredAxes;
+
+		assertEquals( message, desiredAxes.length(), actual.numDimensions() );
+		assertArrayEquals( message, expected.minAsLongArray(), actual.minAsLongArray() );
+		assertArrayEquals( message, expected.maxAsLongArray(), actual.maxAsLongArray() );
+
+		final Cursor< UnsignedShortType > ce = Views.flatIterable( expected ).cursor();
+		final Cursor< UnsignedShortType > ca = Views.flatIterable( actual ).cursor();
+		while ( ce.hasNext() )
+			assertEquals( message, ce.next().get(), ca.next().get() );
+
+		final Interval interval = AxesMatcher.matchInterval( desiredAxes, inputAxes, input );
+		assertArrayEquals( message, expected.minAsLongArray(), Intervals.minAsLongArray( interval ) );
+		assertArrayEquals( message, expected.maxAsLongArray(), Intervals.maxAsLongArray( interval ) );
+	}
+
+	/**
+	 * An image whose pixel values are their flat index.
+	 */
+	private static Img< UnsignedShortType > image( final long... dimensions )
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( dimensions );
+		int i = 0;
+		for ( final UnsignedShortType p : img )
+			p.set( i++ );
+		return img;
+	}
+
+	/**
+	 * Matches the axes by applying the {@link DimensionalityModification}s in
+	 * sequence: dropping the superfluous dimensions at their min, adding the
+	 * missing ones, then flipping the others into place.
+	 */
+	private static < T > RandomAccessibleInterval< T > matchAxesWithSequence( final String desiredAxes, String inputAxes, final RandomAccessibleInterval< T > input )
+	{
+		final List< DimensionalityModification > sequence = new ArrayList<>();
+		for ( int i = inputAxes.length() - 1; i >= 0; i-- )
+		{
+			final char c = inputAxes.charAt( i );
+			if ( desiredAxes.indexOf( c ) < 0 )
+			{
+				final DimensionalityModification change = DimensionalityModification.remove( i, "" + c );
+				inputAxes = change.updateString( inputAxes );
+				sequence.add( change );
+			}
+		}
+		for ( int i = 0; i < desiredAxes.length(); i++ )
+		{
+			final char c = desiredAxes.charAt( i );
+			if ( inputAxes.indexOf( c ) < 0 )
+			{
+				final DimensionalityModification change = DimensionalityModification.add( i, "" + c );
+				inputAxes = change.updateString( inputAxes );
+				sequence.add( change );
+			}
+		}
+		for ( int i = 0; i < inputAxes.length(); i++ )
+		{
+			final char c = inputAxes.charAt( i );
+			final int j = desiredAxes.indexOf( c );
+			if ( i == j )
+				continue;
+			final DimensionalityModification change = DimensionalityModification.flip( i, j, "" + c + desiredAxes.charAt( i ) );
+			inputAxes = change.updateString( inputAxes );
+			sequence.add( change );
+			// The flipped-in axis may need to move again.
+			i--;
+		}
+
+		RandomAccessibleInterval< T > output = input;
+		for ( final DimensionalityModification change : sequence )
+			output = change.updateRAI( output );
+		return output;
+	}
+}
@@ -0,0 +1,180 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+public class BlockCopyTest
+{
+
+	static final long[] DIMENSIONS = { 13, 11, 7 };
+
+	static final long[] TRANSLATION = { -5, 3, 2 };
+
+	static final int CELL_SIZE = 4;
+
+	/**
+	 * Where the tiles are copied in the targets, which are larger than the
+	 * tiles by twice this offset.
+	 */
+	static final long[] TARGET_OFFSET = { 1, 2, 1 };
+
+	@Test
+	public void testArrayImg()
+	{
+		for ( final RandomAccessibleInterval< FloatType > source : sources( new FloatType(), false ) )
+			checkInsideTiles( source );
+		for ( final RandomAccessibleInterval< UnsignedShortType > source : sources( new UnsignedShortType(), false ) )
+			checkInsideTiles( source );
+	}
+
+	@Test
+	public void testCellImg()
+	{
+		// Translated cell images are not supported, see BoundaryPaddingTest.
+		final RandomAccessibleInterval< FloatType > floats = sources( new FloatType(), true ).get( 0 );
+		checkInsideTiles( floats );
+		final RandomAccessibleInterval< UnsignedShortType > shorts = sources( new UnsignedShortType(), true ).get( 0 );
+		checkInsideTiles( shorts );
+	}
+
+	@Test
+	public void testRoundsLikeConverters()
+	{
+		final float[] values = { -2.5f, -1.5f, -0.5f, 0.5f, 1.5f, 2.5f, 254.5f, 3.49f };
+		final RandomAccessibleInterval< FloatType > source = ArrayImgs.floats( values, values.length );
+		for ( final Supplier< RandomAccessibleInterval< ? extends RealType< ? > > > target : targets( new long[] { values.length } ) )
+		{
+			final RandomAccessibleInterval< ? extends RealType< ? > > actual = target.get();
+			final RandomAccessibleInterval< ? extends RealType< ? > > expected = target.get();
+			assertTrue( BlockCopy.copy( source, source, actual ) );
+			RealTypeConverters.copyFromTo( source, expected );
+			assertEqualPixels( expected, actual );
+		}
+	}
+
+	private static < T extends RealType< T > > void checkInsideTiles( final RandomAccessibleInterval< T > source )
+	{
+		final Interval[] tiles = {
+				// Across cells.
+				tile( source, new long[] { 1, 2, 1 }, new long[] { 9, 6, 5 } ),
+				// Within a cell.
+				tile( source, new long[] { 4, 4, 0 }, new long[] { 3, 3, 3 } ),
+				// The whole image.
+				source
+		};
+		for ( final Interval tile : tiles )
+		{
+			for ( final Supplier< RandomAccessibleInterval< ? extends RealType< ? > > > target : targets( targetDimensions( tile ) ) )
+			{
+				final RandomAccessibleInterval< ? extends RealType< ? > > actual = target.get();
+				assertTrue( Util.printInterval( tile ), BlockCopy.copy( Views.extendMirrorSingle( source ), tile, actual, TARGET_OFFSET ) );
+				assertEqualPixels( expected( Views.extendMirrorSingle( source ), tile, target.get() ), actual );
+			}
+		}
+	}
+
+	/**
+	 * Returns the source images to test: a zero-min image and the same image
+	 * translated.
+	 */
+	static < T extends NativeType< T > & RealType< T > > List< RandomAccessibleInterval< T > > sources( final T type, final boolean cells )
+	{
+		final Img< T > img = cells
+				? new CellImgFactory<>( type, CELL_SIZE ).create( DIMENSIONS )
+				: new ArrayImgFactory<>( type ).create( DIMENSIONS );
+		final Cursor< T > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			long v = 0;
+			for ( int d = 0; d < img.numDimensions(); d++ )
+				v = 31 * v + cursor.getLongPosition( d );
+			// Half values, to check the rounding.
+			cursor.get().setReal( v % 97 - 8.5 );
+		}
+		return Arrays.asList( img, Views.translate( img, TRANSLATION ) );
+	}
+
+	/**
+	 * Returns the interval of the specified size, at the specified offset from
+	 * the source min.
+	 */
+	static Interval tile( final Interval source, final long[] offset, final long[] size )
+	{
+		final long[] min = new long[ offset.length ];
+		final long[] max = new long[ offset.length ];
+		for ( int d = 0; d < offset.length; d++ )
+		{
+			min[ d ] = source.min( d ) + offset[ d ];
+			max[ d ] = min[ d ] + size[ d ] - 1;
+		}
+		return new FinalInterval( min, max );
+	}
+
+	static long[] targetDimensions( final Interval tile )
+	{
+		final long[] dimensions = tile.dimensionsAsLongArray();
+		for ( int d = 0; d < dimensions.length; d++ )
+			dimensions[ d ] += 2 * TARGET_OFFSET[ d ];
+		return dimensions;
+	}
+
+	/**
+	 * Returns factories of uint8, uint16 and float targets.
+	 */
+	static List< Supplier< RandomAccessibleInterval< ? extends RealType< ? > > > > targets( final long[] dimensions )
+	{
+		return Arrays.asList(
+				() -> ArrayImgs.unsignedBytes( dimensions ),
+				() -> ArrayImgs.unsignedShorts( dimensions ),
+				() -> ArrayImgs.floats( dimensions ) );
+	}
+
+	/**
+	 * Copies the tile of the extended source in the target, at
+	 * {@link #TARGET_OFFSET}, with the ImgLib2 converters.
+	 */
+	static RandomAccessibleInterval< ? extends RealType< ? > > expected( final RandomAccessible< ? extends RealType< ? > > source, final Interval tile, final RandomAccessibleInterval< ? extends RealType< ? > > target )
+	{
+		RealTypeConverters.copyFromTo( Views.zeroMin( Views.interval( source, tile ) ), Views.offsetInterval( target, TARGET_OFFSET, tile.dimensionsAsLongArray() ) );
+		return target;
+	}
+
+	static void assertEqualPixels( final RandomAccessibleInterval< ? extends RealType< ? > > expected, final RandomAccessibleInterval< ? extends RealType< ? > > actual )
+	{
+		assertTrue( Intervals.equals( expected, actual ) );
+		final Cursor< ? extends RealType< ? > > cursor = Views.iterable( expected ).localizingCursor();
+		final RandomAccess< ? extends RealType< ? > > access = actual.randomAccess();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			access.setPosition( cursor );
+			assertEquals( Util.printCoordinates( cursor ), cursor.get().getRealDouble(), access.get().getRealDouble(), 0 );
+		}
+	}
+}
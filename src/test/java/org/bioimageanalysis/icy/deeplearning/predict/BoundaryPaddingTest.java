@@ -0,0 +1,113 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import static org.bioimageanalysis.icy.deeplearning.predict.BlockCopyTest.assertEqualPixels;
+import static org.bioimageanalysis.icy.deeplearning.predict.BlockCopyTest.expected;
+import static org.bioimageanalysis.icy.deeplearning.predict.BlockCopyTest.sources;
+import static org.bioimageanalysis.icy.deeplearning.predict.BlockCopyTest.targetDimensions;
+import static org.bioimageanalysis.icy.deeplearning.predict.BlockCopyTest.targets;
+import static org.bioimageanalysis.icy.deeplearning.predict.BlockCopyTest.tile;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+
+public class BoundaryPaddingTest
+{
+
+	@Test
+	public void testMirrorSingle()
+	{
+		for ( final RandomAccessibleInterval< FloatType > source : allSources( new FloatType() ) )
+			checkTiles( source, BoundaryPadding.Mode.MIRROR_SINGLE, 0 );
+		for ( final RandomAccessibleInterval< UnsignedShortType > source : allSources( new UnsignedShortType() ) )
+			checkTiles( source, BoundaryPadding.Mode.MIRROR_SINGLE, 0 );
+	}
+
+	@Test
+	public void testZero()
+	{
+		for ( final RandomAccessibleInterval< FloatType > source : allSources( new FloatType() ) )
+			checkTiles( source, BoundaryPadding.Mode.ZERO, 0 );
+	}
+
+	@Test
+	public void testConstant()
+	{
+		// A negative half value, to check the rounding.
+		for ( final RandomAccessibleInterval< FloatType > source : allSources( new FloatType() ) )
+			checkTiles( source, BoundaryPadding.Mode.CONSTANT, -2.5 );
+		for ( final RandomAccessibleInterval< UnsignedShortType > source : allSources( new UnsignedShortType() ) )
+			checkTiles( source, BoundaryPadding.Mode.CONSTANT, 3.5 );
+	}
+
+	@Test
+	public void testMirror()
+	{
+		assertEquals( 1, BoundaryPadding.mirror( -1, 0, 4 ) );
+		assertEquals( 3, BoundaryPadding.mirror( 5, 0, 4 ) );
+		assertEquals( 0, BoundaryPadding.mirror( 8, 0, 4 ) );
+		assertEquals( 7, BoundaryPadding.mirror( 3, 5, 9 ) );
+		assertEquals( 2, BoundaryPadding.mirror( -10, 2, 2 ) );
+	}
+
+	/**
+	 * Returns the array and cell images, zero-min and translated.
+	 */
+	private static < T extends NativeType< T > & RealType< T > > List< RandomAccessibleInterval< T > > allSources( final T type )
+	{
+		final List< RandomAccessibleInterval< T > > sources = new ArrayList<>( sources( type, false ) );
+		sources.addAll( sources( type, true ) );
+		return sources;
+	}
+
+	private static < T extends RealType< T > > void checkTiles( final RandomAccessibleInterval< T > source, final BoundaryPadding.Mode mode, final double value )
+	{
+		final BoundaryPadding padding = new BoundaryPadding( source, mode, value );
+		final Interval[] tiles = {
+				// Inside, across cells.
+				tile( source, new long[] { 1, 2, 1 }, new long[] { 9, 6, 5 } ),
+				// Across the lower borders.
+				tile( source, new long[] { -3, -2, 0 }, new long[] { 10, 8, 7 } ),
+				// Across the upper borders.
+				tile( source, new long[] { 8, 5, 3 }, new long[] { 9, 8, 6 } ),
+				// Across all the borders.
+				tile( source, new long[] { -2, -3, -1 }, new long[] { 17, 17, 9 } )
+		};
+		for ( final Interval tile : tiles )
+			checkTile( source, padding, tile, true );
+
+		// Border tiles larger than their in-bounds part: the mirror is out of
+		// the tile, only the constant modes are supported.
+		final Interval[] largeTiles = {
+				tile( source, new long[] { -10, -2, -1 }, new long[] { 12, 8, 4 } ),
+				tile( source, new long[] { 11, 9, 5 }, new long[] { 6, 5, 5 } ),
+				// Outside.
+				tile( source, new long[] { 20, 0, 0 }, new long[] { 3, 3, 3 } )
+		};
+		for ( final Interval tile : largeTiles )
+			checkTile( source, padding, tile, mode != BoundaryPadding.Mode.MIRROR_SINGLE );
+	}
+
+	private static < T extends RealType< T > > void checkTile( final RandomAccessibleInterval< T > source, final BoundaryPadding padding, final Interval tile, final boolean supported )
+	{
+		for ( final Supplier< RandomAccessibleInterval< ? extends RealType< ? > > > target : targets( targetDimensions( tile ) ) )
+		{
+			final RandomAccessibleInterval< ? extends RealType< ? > > actual = target.get();
+			final String message = padding + ", tile " + Util.printInterval( tile );
+			assertEquals( message, supported, padding.copy( tile, actual, BlockCopyTest.TARGET_OFFSET ) );
+			if ( supported )
+				assertEqualPixels( expected( padding.extend( source ), tile, target.get() ), actual );
+		}
+	}
+}
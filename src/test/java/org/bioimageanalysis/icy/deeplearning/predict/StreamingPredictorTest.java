@@ -0,0 +1,86 @@
+package org.bioimageanalysis.icy.deeplearning.predict;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class StreamingPredictorTest
+{
+
+	@Test
+	public void testVisitsEveryTileOnce() throws Exception
+	{
+		final CellGrid[] grids = {
+				new CellGrid( new long[] { 50, 30, 20 }, new int[] { 8, 8, 8 } ),
+				new CellGrid( new long[] { 64, 64 }, new int[] { 16, 16 } ),
+				new CellGrid( new long[] { 100, 1, 17, 1 }, new int[] { 10, 1, 4, 1 } ),
+				new CellGrid( new long[] { 5, 5 }, new int[] { 8, 8 } )
+		};
+		for ( final TraversalOrder order : TraversalOrder.values() )
+			for ( final CellGrid grid : grids )
+				checkVisitsEveryTileOnce( grid, order );
+	}
+
+	private static void checkVisitsEveryTileOnce( final CellGrid grid, final TraversalOrder order ) throws Exception
+	{
+		final int n = grid.numDimensions();
+		final List< String > visited = new ArrayList<>();
+		final StreamingPredictor< FloatType > predictor = new StreamingPredictor<>(
+				tile -> Views.iterable( tile ).forEach( p -> p.set( 1 ) ),
+				grid, new FloatType(), 3, order );
+		predictor.run( ( gridPosition, tile ) -> {
+			// The tile is the cell at the specified grid position.
+			final long[] min = new long[ n ];
+			final int[] dimensions = new int[ n ];
+			grid.getCellDimensions( gridPosition, min, dimensions );
+			for ( int d = 0; d < n; d++ )
+			{
+				assertEquals( min[ d ], tile.min( d ) );
+				assertEquals( dimensions[ d ], tile.dimension( d ) );
+			}
+			Views.iterable( tile ).forEach( p -> assertEquals( 1, p.get(), 0 ) );
+			synchronized ( visited )
+			{
+				visited.add( Arrays.toString( gridPosition ) );
+			}
+		} );
+
+		final long nTiles = Intervals.numElements( grid.getGridDimensions() );
+		final String message = order + " " + grid;
+		assertEquals( message, nTiles, visited.size() );
+		final Set< String > unique = new HashSet<>( visited );
+		assertEquals( message, nTiles, unique.size() );
+	}
+
+	@Test
+	public void testHilbertStepsToAdjacentTiles()
+	{
+		for ( final long[] gridDimensions : new long[][] { { 4, 4 }, { 8, 8, 8 }, { 16, 1, 16 } } )
+		{
+			final Iterator< long[] > it = TraversalOrder.HILBERT.iterator( gridDimensions );
+			long[] previous = it.next();
+			while ( it.hasNext() )
+			{
+				final long[] position = it.next();
+				long distance = 0;
+				for ( int d = 0; d < position.length; d++ )
+					distance += Math.abs( position[ d ] - previous[ d ] );
+				assertTrue( Arrays.toString( previous ) + " -> " + Arrays.toString( position ), distance == 1 );
+				previous = position;
+			}
+		}
+	}
+}